@@ -57,8 +57,6 @@ public class DecosetEdit extends ListActivity implements View.OnClickListener,
 
 	// Flyweight objects for the ObjectMapper
 	private Decoset.Item mFlyweightItem;
-	private final Mix mFlyweightMix = new Mix(0, 0);
-	private final Setpoint mFlyweightSetpoint = new Setpoint(0, mFlyweightMix);
 	
 	protected SharedPreferences mSettings;
 	private Units mUnits;
@@ -170,7 +168,7 @@ public class DecosetEdit extends ListActivity implements View.OnClickListener,
 
 	@Override
 	public Decoset.Item getObjectFromCursor(Cursor c) {
-		return mORMapper.fetchDecosetItem(c, mFlyweightItem, mFlyweightMix, mFlyweightSetpoint);
+		return mORMapper.fetchDecosetItem(c, mFlyweightItem);
 	}
 
 	@Override
@@ -274,7 +272,7 @@ public class DecosetEdit extends ListActivity implements View.OnClickListener,
 			resetFields();
 		} else {
 			Cursor c = (Cursor)l.getItemAtPosition(position);
-			mOpenItem = mORMapper.fetchDecosetItem(c, mOpenItem, null, null);
+			mOpenItem = mORMapper.fetchDecosetItem(c, mOpenItem);
 			mGasSource.setText(mOpenItem.getGasSource().toString());
 			mDepth.setValue(mOpenItem.getMaxDepth());
 		}
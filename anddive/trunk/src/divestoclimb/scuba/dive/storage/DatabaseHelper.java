@@ -10,7 +10,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	private static final String TAG = "andDive Database";
 
 	private static final String DATABASE_NAME = "anddivedata";
-	public static final int DATABASE_VERSION = 1;
+	public static final int DATABASE_VERSION = 2;
 	private Context mContext;
 
 	public DatabaseHelper(Context ctx) {
@@ -32,13 +32,26 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 		int v = oldVersion;
 		// First case: database is older than earliest version we can upgrade from
 		if(v < 1) {
-			Log.w(TAG, "Upgrading database from version " + v + " to 1, which" +
-				"will destroy all old data");
+			Log.w(TAG, "Upgrading database from version " + v + " to " + DATABASE_VERSION +
+				", which will destroy all old data");
+			// onCreate makes the current schema, so there's nothing more to do
 			onCreate(db);
-			v = 1;
+			v = DATABASE_VERSION;
 		}
 		// If database can be upgraded, check for compatible versions here
 		// and do sequential upgrades using the appropriate SQL resources.
+		if(v < 2) {
+			// Profile validity moved from every row to a watermark on the dive
+			execAll(db, R.array.db_upgrade_2);
+			v = 2;
+		}
+	}
+
+	private void execAll(SQLiteDatabase db, int resId) {
+		final String[] statements = mContext.getResources().getStringArray(resId);
+		for(int i = 0; i < statements.length; i ++) {
+			db.execSQL(statements[i]);
+		}
 	}
 
 	private void populateData(SQLiteDatabase db) {
@@ -47,6 +47,7 @@ public class PublicORMapper {
 	public static final String KEY_DIVE_FINALDECOSTATE = "FinalDecoState";
 	public static final String KEY_DIVE_FINALCNSSTATE = "FinalCnsState";
 	public static final String KEY_DIVE_FINALOTUSTATE = "FinalOtuState";
+	public static final String KEY_DIVE_VALIDUPTO = "ValidUpTo";
 	
 	public static final String KEY_PROFILEITEM_ID = "_id";
 	public static final String KEY_PROFILEITEM_DIVE = "Dive";
@@ -69,8 +70,6 @@ public class PublicORMapper {
 	protected Dive mFlyDive = new Dive(mUnits, Record.NO_ID, 0, null, Record.NO_ID);
 	protected ProfileItem mFlyProfileItem = new ProfileItem(Record.NO_ID, -1, false);
 	protected Mission mFlyMission = new Mission(Record.NO_ID, null);
-	protected Mix mFlyMix = new Mix(0, 0);
-	protected Setpoint mFlySetpoint = new Setpoint(0, mFlyMix);
 
 	/**
 	 * If a class does not need to retrieve anything unit-specific, this
@@ -92,34 +91,22 @@ public class PublicORMapper {
 	 * @param setpointIndex The column index of the setpoint field
 	 * @param fo2Index The column index of the fO2 field
 	 * @param fheIndex The column index of the fHe field
-	 * @param mixInstance An optional existing Mix instance to use in the return
-	 * @param setpointInstance An optional existing Setpoint instance to use in the return
-	 * @return A GasSource instance corresponding to the data read from the Cursor
+	 * @return The GasSource corresponding to the data read from the Cursor.
+	 * It's interned unless it's a setpoint without a diluent.
 	 */
-	protected GasSource decodeGasSource(Cursor c, int setpointIndex, int fo2Index, int fheIndex, Mix mixInstance, Setpoint setpointInstance) {
-		// Although the columns are kept in the database as integers, I fetch them
-		// as floats so the division doesn't round them off to 0.
-		if(! c.isNull(fo2Index) && ! c.isNull(fheIndex)) {
-			if(mixInstance == null) {
-				mixInstance = new Mix(c.getFloat(fo2Index) / 1000, c.getFloat(fheIndex) / 1000);
-			} else {
-				mixInstance.setfO2(c.getFloat(fo2Index) / 1000);
-				mixInstance.setfHe(c.getFloat(fheIndex) / 1000);
-			}
-		} else {
-			mixInstance = null;
+	protected GasSource decodeGasSource(Cursor c, int setpointIndex, int fo2Index, int fheIndex) {
+		if(c.isNull(fo2Index) || c.isNull(fheIndex)) {
+			// Interned setpoints always have a diluent, so one without has to
+			// be built
+			return c.isNull(setpointIndex)? null: new Setpoint(c.getFloat(setpointIndex) / 10, null);
 		}
-		if(c.isNull(setpointIndex)) {
-			return mixInstance;
-		} else {
-			if(setpointInstance == null) {
-				setpointInstance = new Setpoint(c.getFloat(setpointIndex) / 10, mixInstance);
-			} else {
-				setpointInstance.setPo2(c.getFloat(setpointIndex) / 10);
-				setpointInstance.setDiluent(mixInstance);
-			}
-			return setpointInstance;
+		// The mix is kept in thousandths and the setpoint in tenths of an
+		// ATA, which go straight into the gas's code
+		int code = c.getInt(fo2Index) | c.getInt(fheIndex) << 10;
+		if(! c.isNull(setpointIndex)) {
+			code |= c.getInt(setpointIndex) * 10 << 20;
 		}
+		return GasSource.forCode(code);
 	}
 	
 	/**
@@ -276,19 +263,17 @@ public class PublicORMapper {
 	}
 	
 	public Decoset.Item fetchDecosetItem(Cursor c, boolean useFlyweight) {
-		return fetchDecosetItem(c, useFlyweight? mFlyDecosetItem: null,
-				useFlyweight? mFlyMix: null, useFlyweight? mFlySetpoint: null);
+		return fetchDecosetItem(c, useFlyweight? mFlyDecosetItem: null);
 	}
 	
-	public Decoset.Item fetchDecosetItem(Cursor c, Decoset.Item instance, Mix mixInstance, Setpoint setpointInstance) {
+	public Decoset.Item fetchDecosetItem(Cursor c, Decoset.Item instance) {
 		final long id = c.getLong(c.getColumnIndexOrThrow(KEY_DECOSETITEM_ID)),
 				decoset_id = c.getLong(c.getColumnIndexOrThrow(KEY_DECOSETITEM_DECOSET));
 		final int depth = Math.round(
 			mUnits.convertDepth(c.getFloat(c.getColumnIndexOrThrow(KEY_DECOSETITEM_MAXDEPTH)), Units.METRIC));
 		final GasSource gasSource = decodeGasSource(c, c.getColumnIndexOrThrow(KEY_DECOSETITEM_SETPOINT),
 				c.getColumnIndexOrThrow(KEY_DECOSETITEM_MIXO2),
-				c.getColumnIndexOrThrow(KEY_DECOSETITEM_MIXHE),
-				mixInstance, setpointInstance
+				c.getColumnIndexOrThrow(KEY_DECOSETITEM_MIXHE)
 		);
 		if(instance == null) {
 			instance = new Decoset.Item(id, decoset_id, depth, gasSource);
@@ -356,7 +341,8 @@ public class PublicORMapper {
 		final int mission_order = c.getInt(c.getColumnIndexOrThrow(KEY_DIVE_MISSIONORDER)),
 				surface_interval = c.getInt(c.getColumnIndexOrThrow(KEY_DIVE_SURFACEINTERVAL)),
 				altitude = Math.round(mUnits.convertDepth(c.getInt(c.getColumnIndexOrThrow(KEY_DIVE_ALTITUDE)), Units.METRIC)),
-				acclim_time = c.getInt(c.getColumnIndexOrThrow(KEY_DIVE_ACCLIMATIZATIONTIME));
+				acclim_time = c.getInt(c.getColumnIndexOrThrow(KEY_DIVE_ACCLIMATIZATIONTIME)),
+				valid_up_to = c.getInt(c.getColumnIndexOrThrow(KEY_DIVE_VALIDUPTO));
 		final String name = c.getString(c.getColumnIndexOrThrow(KEY_DIVE_NAME));
 		final float cns = c.getFloat(c.getColumnIndexOrThrow(KEY_DIVE_FINALCNSSTATE)),
 				otu = c.getFloat(c.getColumnIndexOrThrow(KEY_DIVE_FINALOTUSTATE));
@@ -367,6 +353,7 @@ public class PublicORMapper {
 		} else {
 			instance.reset(id, mission_id, mission_order, name, decoset_id, surface_interval, altitude, acclim_time, decoConfig, finalDecoState, cns, otu);
 		}
+		instance.setValidUpTo(valid_up_to);
 		instance.setDecosetFetcher(mDecosetFetcher)
 			.setPreviousDiveFetcher(mPreviousDiveFetcher)
 			.setUpdater(mDiveUpdater);
@@ -388,6 +375,25 @@ public class PublicORMapper {
 		}
 	};
 	
+	protected ContentValues getDiveValues(Dive dive) {
+		final ContentValues v = new ContentValues();
+		v.put(KEY_DIVE_NAME, dive.getName());
+		v.put(KEY_DIVE_MISSION, dive.getMissionID());
+		v.put(KEY_DIVE_MISSIONORDER, dive.getOrder());
+		v.put(KEY_DIVE_SURFACEINTERVAL, dive.getSurfaceInterval());
+		v.put(KEY_DIVE_ALTITUDE, Math.round(Units.convertDepth(dive.getAltitude(), mUnits.getCurrentSystem(), Units.METRIC)));
+		v.put(KEY_DIVE_ACCLIMATIZATIONTIME, dive.getAcclimatizationTime());
+		v.put(KEY_DIVE_DECOSET, dive.getDecosetID());
+		v.put(KEY_DIVE_DECOCONFIG, dive.getDecoConfig());
+		v.put(KEY_DIVE_FINALDECOSTATE, dive.getFinalDecoState());
+		v.put(KEY_DIVE_FINALCNSSTATE, dive.getFinalCns());
+		v.put(KEY_DIVE_FINALOTUSTATE, dive.getFinalOtu());
+		// The profile rows' Valid flags aren't kept up to date, so this is
+		// the only record of how much of the profile is still good
+		v.put(KEY_DIVE_VALIDUPTO, dive.getValidUpTo());
+		return v;
+	}
+	
 	public Record.Updater mDiveUpdater = new Record.Updater() {
 		@Override
 		public long doCreate(Record r) {
@@ -402,9 +408,9 @@ public class PublicORMapper {
 		}
 
 		@Override
-		public boolean doUpdate(Record r) {
-			// TODO Auto-generated method stub
-			return false;
+		public boolean doUpdate(Record dive) {
+			final Uri uri = Uri.withAppendedPath(CONTENT_URI, "dives/" + String.valueOf(dive.getId()));
+			return mCtx.getContentResolver().update(uri, getDiveValues((Dive)dive), null, null) > 0;
 		}
 	};
 	
@@ -427,10 +433,8 @@ public class PublicORMapper {
 	}
 	
 	public ProfileItem fetchProfileItem(Cursor c) { return fetchProfileItem(c, false); }
-	public ProfileItem fetchProfileItem(Cursor c, boolean useFlyweight) { return fetchProfileItem(c, useFlyweight? mFlyProfileItem: null,
-			useFlyweight? mFlyMix: null, useFlyweight? mFlySetpoint: null); }
-	public ProfileItem fetchProfileItem(Cursor c, ProfileItem profileItemInstance,
-			Mix mixInstance, Setpoint setpointInstance) {
+	public ProfileItem fetchProfileItem(Cursor c, boolean useFlyweight) { return fetchProfileItem(c, useFlyweight? mFlyProfileItem: null); }
+	public ProfileItem fetchProfileItem(Cursor c, ProfileItem profileItemInstance) {
 		final long id = c.getLong(c.getColumnIndexOrThrow(KEY_PROFILEITEM_ID)),
 				dive_id = c.getLong(c.getColumnIndexOrThrow(KEY_PROFILEITEM_DIVE));
 		final int order = c.getInt(c.getColumnIndexOrThrow(KEY_PROFILEITEM_ORDER)),
@@ -438,12 +442,13 @@ public class PublicORMapper {
 				time = c.getInt(c.getColumnIndexOrThrow(KEY_PROFILEITEM_TIME)),
 				timeType = c.getInt(c.getColumnIndexOrThrow(KEY_PROFILEITEM_TIMETYPE)),
 				source = c.getInt(c.getColumnIndexOrThrow(KEY_PROFILEITEM_SOURCE)),
-				valid = c.getInt(c.getColumnIndexOrThrow(KEY_PROFILEITEM_VALID));
+				valid = c.getInt(c.getColumnIndexOrThrow(KEY_PROFILEITEM_VALID)) == ProfileItem.ALWAYS_VALID?
+						ProfileItem.ALWAYS_VALID: ProfileItem.VALID;
+		// Everything but ALWAYS_VALID comes from the dive's ValidUpTo instead
 		final boolean active = c.getInt(c.getColumnIndexOrThrow(KEY_PROFILEITEM_ACTIVE)) == 1;
 		final GasSource gasSource = decodeGasSource(c, c.getColumnIndexOrThrow(KEY_PROFILEITEM_SETPOINT),
 				c.getColumnIndexOrThrow(KEY_PROFILEITEM_MIXO2),
-				c.getColumnIndexOrThrow(KEY_PROFILEITEM_MIXHE),
-				mixInstance, setpointInstance
+				c.getColumnIndexOrThrow(KEY_PROFILEITEM_MIXHE)
 		);
 		if(profileItemInstance == null) {
 			profileItemInstance = new ProfileItem(id, dive_id, order, depth, time, timeType, gasSource, source, active, valid);
@@ -0,0 +1,1024 @@
+package divestoclimb.lib.scuba;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SortedSet;
+
+/**
+ * A base class for DecoAlgorithms that model the diver as a set of parallel
+ * compartments, each loading and unloading nitrogen and helium exponentially.
+ * It takes care of everything that doesn't depend on the particular model:
+ * loading the compartments during depth changes and constant-depth segments,
+ * switching gases on ascent according to the Decoset, and building the list
+ * of stops. Subclasses only have to decide how much inert gas each compartment
+ * can tolerate at a given ambient pressure.
+ *
+ * Compartment loadings are kept in primitive arrays as partial pressures in
+ * ATA. Depth changes are integrated exactly with the Schreiner equation and
+ * constant-depth segments with the Haldane equation, so no time stepping is
+ * needed. The exponential decay factors both equations need are looked up in
+ * the algorithm's own DecayCache, so they're only computed the first time a
+ * time step comes up. Nothing is allocated during a run except the
+ * ProfileItems returned for stops.
+ */
+public abstract class AbsDecoAlgorithm implements DecoAlgorithm, DecoStatus {
+
+	/**
+	 * The partial pressure of water vapor in the lungs, in ATA
+	 */
+	public static final double WATER_VAPOR_PRESSURE = 0.0627;
+
+	protected static final double LN2 = Math.log(2);
+
+	// The fraction of nitrogen in air, used for the initial compartment state
+	static final double AIR_FN2 = 0.79;
+
+	/**
+	 * The longest a single stop may last, in minutes. If the ceiling still
+	 * hasn't cleared by then, the gas being breathed can't decompress the diver
+	 * and the run fails with an IllegalStateException.
+	 */
+	public static final int MAX_STOP_TIME = 1440;
+
+	// Slack allowed when rounding a solved stop time up to whole minutes, so
+	// floating point noise doesn't add a minute
+	private static final double STOP_TIME_SLACK = 1e-9;
+
+	private static final ProfileItem[] NO_STOPS = new ProfileItem[0];
+
+	protected final Units mUnits;
+	protected final int mCompartments;
+
+	// Rate constants (ln 2 / half-time) for each compartment
+	protected final double[] mN2Rates, mHeRates;
+	// Decay factors exp(-kt) for the time steps the compartments have seen
+	private final DecayCache mN2Decay, mHeDecay;
+
+	// The current inert gas loading of each compartment, in ATA
+	protected final double[] mN2, mHe;
+
+	protected float mSurfacePressure = 1;
+	protected int mDepth = 0;
+	protected float mRuntime = 0;
+	protected GasSource mGasSource = null;
+
+	// Checked between stops, or null for no limit
+	private RunLimit mLimit = null;
+
+	// The gas switches from the Decoset, deepest first
+	private int[] mSwitchDepths = new int[0];
+	private GasSource[] mSwitchSources = new GasSource[0];
+
+	// Configuration, in the units of mUnits
+	protected float mAscentRate, mDescentRate;
+	protected int mStopIncrement, mLastStopDepth;
+
+	// Buffers for the stops of the ascent in progress. These are reused
+	// between runs and only grow if an ascent needs more stops than ever
+	// before.
+	private int mStopCount;
+	private int[] mStopDepths = new int[16], mStopTimes = new int[16];
+	private float[] mStopTravelTimes = new float[16];
+	private GasSource[] mStopSources = new GasSource[16];
+
+	// The time spent changing depth since the last stop of the last ascent
+	private float mTravelTime;
+
+	// The segment and depth change times of the last line run
+	private float mSegtime, mDepthChangeTime;
+
+	// A saved copy of the diver's state, for algorithms that need to try
+	// several ascents from the same starting point
+	private final double[] mSavedN2, mSavedHe;
+	private float mSavedRuntime;
+	private int mSavedDepth;
+	private GasSource mSavedGasSource;
+
+	// Another copy for getTimeToSurface to go back to after its trial ascent,
+	// kept apart because the ascent may use the one above. The algorithm's
+	// extra state is written to a buffer made the first time it's needed.
+	private final double[] mAheadN2, mAheadHe;
+	private float mAheadRuntime;
+	private int mAheadDepth;
+	private GasSource mAheadGasSource;
+	private ByteBuffer mAheadExtra = null;
+
+	// Scratch space for getNdl, so it doesn't allocate anything
+	private final double[] mScratchN2, mScratchHe, mScratchN2Limit, mScratchHeLimit;
+
+	/**
+	 * Build a new compartment model. The compartments start out saturated with
+	 * air at sea level.
+	 * @param units The unit system all depths are in
+	 * @param n2Halftimes The nitrogen half-time of each compartment in minutes
+	 * @param heHalftimes The helium half-time of each compartment in minutes.
+	 * Must be the same length as n2Halftimes.
+	 */
+	protected AbsDecoAlgorithm(Units units, double[] n2Halftimes, double[] heHalftimes) {
+		mUnits = units;
+		final int n = n2Halftimes.length;
+		mCompartments = n;
+		mN2Rates = new double[n];
+		mHeRates = new double[n];
+		for(int c = 0; c < n; c++) {
+			mN2Rates[c] = LN2 / n2Halftimes[c];
+			mHeRates[c] = LN2 / heHalftimes[c];
+		}
+		mN2Decay = new DecayCache(mN2Rates);
+		mHeDecay = new DecayCache(mHeRates);
+		mN2 = new double[n];
+		mHe = new double[n];
+		mSavedN2 = new double[n];
+		mSavedHe = new double[n];
+		mAheadN2 = new double[n];
+		mAheadHe = new double[n];
+		mScratchN2 = new double[n];
+		mScratchHe = new double[n];
+		mScratchN2Limit = new double[n];
+		mScratchHeLimit = new double[n];
+		resetState();
+		resetConfig();
+	}
+
+	/**
+	 * Compute the lowest ambient pressure a compartment can tolerate with a
+	 * given inert gas loading.
+	 * @param c The index of the compartment
+	 * @param pN2 The nitrogen loading of the compartment in ATA
+	 * @param pHe The helium loading of the compartment in ATA
+	 * @param depth The depth the diver would be ascending to. Models that allow
+	 * a different amount of supersaturation through the ascent use this to
+	 * decide how much to allow.
+	 * @return The tolerated ambient pressure in ATA
+	 */
+	protected abstract double toleratedPressure(int c, double pN2, double pHe, int depth);
+
+	/**
+	 * Called when a stop is about to be made at the given depth, before its
+	 * length is worked out.
+	 * @param depth The depth of the stop
+	 */
+	protected void beginStop(int depth) { }
+
+	/**
+	 * Called when the diver leaves the surface for a new dive
+	 */
+	protected void beginDive() { }
+
+	/**
+	 * Save the compartment loadings, depth, runtime and gas source so they can
+	 * be restored with restoreSnapshot. Only one snapshot is kept.
+	 */
+	protected void saveSnapshot() {
+		System.arraycopy(mN2, 0, mSavedN2, 0, mCompartments);
+		System.arraycopy(mHe, 0, mSavedHe, 0, mCompartments);
+		mSavedRuntime = mRuntime;
+		mSavedDepth = mDepth;
+		mSavedGasSource = mGasSource;
+	}
+
+	/**
+	 * Go back to the state saved by the last call to saveSnapshot
+	 */
+	protected void restoreSnapshot() {
+		System.arraycopy(mSavedN2, 0, mN2, 0, mCompartments);
+		System.arraycopy(mSavedHe, 0, mHe, 0, mCompartments);
+		mRuntime = mSavedRuntime;
+		mDepth = mSavedDepth;
+		mGasSource = mSavedGasSource;
+	}
+
+	/**
+	 * Reset the compartments to saturation with air at sea level
+	 */
+	protected void resetState() {
+		mSurfacePressure = 1;
+		mRuntime = 0;
+		mDepth = 0;
+		mGasSource = null;
+		Arrays.fill(mN2, (1 - WATER_VAPOR_PRESSURE) * AIR_FN2);
+		Arrays.fill(mHe, 0);
+	}
+
+	/**
+	 * Reset all configuration to the defaults for the current unit system
+	 */
+	protected void resetConfig() {
+		final float increment = mUnits.depthIncrement();
+		// 10 m/min ascending, 20 m/min descending
+		mAscentRate = mUnits.convertDepth(10, Units.METRIC);
+		mDescentRate = mUnits.convertDepth(20, Units.METRIC);
+		mStopIncrement = (int)increment;
+		mLastStopDepth = (int)increment;
+	}
+
+	/**
+	 * Read configuration values from a config blob. Depths and rates are
+	 * stored in metric so a config stays valid if the user changes unit
+	 * systems. Subclasses that have their own configuration must call through
+	 * to this first, then read theirs.
+	 * @param config The config, positioned where this class's values begin
+	 */
+	protected void readConfig(ByteBuffer config) {
+		mAscentRate = mUnits.convertDepth(config.getFloat(), Units.METRIC);
+		mDescentRate = mUnits.convertDepth(config.getFloat(), Units.METRIC);
+		mLastStopDepth = Math.round(mUnits.convertDepth(config.getFloat(), Units.METRIC));
+	}
+
+	/**
+	 * Write configuration values the way readConfig expects to read them.
+	 * @param config The buffer to write to
+	 */
+	protected void writeConfig(ByteBuffer config) {
+		final int system = mUnits.getCurrentSystem();
+		config.putFloat(Units.convertDepth(mAscentRate, system, Units.METRIC));
+		config.putFloat(Units.convertDepth(mDescentRate, system, Units.METRIC));
+		config.putFloat(Units.convertDepth(mLastStopDepth, system, Units.METRIC));
+	}
+
+	/**
+	 * @return The number of bytes writeConfig writes
+	 */
+	protected int getConfigSize() {
+		return 12;
+	}
+
+	/**
+	 * Load a config built by getConfig. Anything the config doesn't hold goes
+	 * back to its default.
+	 * @param config The config, or null to keep the current configuration
+	 */
+	public void loadConfig(byte[] config) {
+		if(config != null) {
+			resetConfig();
+			readConfig(ByteBuffer.wrap(config));
+		}
+	}
+
+	/**
+	 * Build a config blob from the current configuration, suitable for
+	 * storing with a Dive and passing to loadConfig later.
+	 * @return The config
+	 */
+	public byte[] getConfig() {
+		final ByteBuffer config = ByteBuffer.allocate(getConfigSize());
+		writeConfig(config);
+		return config.array();
+	}
+
+	public float getAscentRate() { return mAscentRate; }
+	public void setAscentRate(float rate) { mAscentRate = rate; }
+	public float getDescentRate() { return mDescentRate; }
+	public void setDescentRate(float rate) { mDescentRate = rate; }
+	public int getLastStopDepth() { return mLastStopDepth; }
+	public void setLastStopDepth(int depth) { mLastStopDepth = depth; }
+
+	/**
+	 * @return The DecoState.ALGORITHM_* constant identifying this algorithm's
+	 * states
+	 */
+	protected abstract int getAlgorithmId();
+
+	/**
+	 * @return The number of bytes of algorithm-specific state writeExtraState
+	 * writes
+	 */
+	protected int getExtraStateSize() {
+		return 0;
+	}
+
+	/**
+	 * Write algorithm-specific state
+	 * @param state The state payload, positioned where the extra data begins
+	 */
+	protected void writeExtraState(ByteBuffer state) { }
+
+	/**
+	 * Read algorithm-specific state. This is only called for states written
+	 * by the same algorithm.
+	 * @param state The state payload, positioned where the extra data begins
+	 */
+	protected void readExtraState(ByteBuffer state) { }
+
+	/**
+	 * Save the compartment loadings and the diver's current depth, gas and
+	 * runtime in the format described by DecoState.
+	 */
+	public byte[] getState() {
+		final ByteBuffer payload = DecoState.create(getAlgorithmId(), mCompartments, getExtraStateSize());
+		payload.putFloat(DecoState.SURFACE_PRESSURE, mSurfacePressure)
+			.putFloat(DecoState.RUNTIME, mRuntime)
+			.putInt(DecoState.DEPTH, mDepth)
+			.putInt(DecoState.GAS_SOURCE, DecoState.packGasSource(mGasSource));
+		payload.position(DecoState.LOADINGS);
+		payload.asDoubleBuffer().put(mN2).put(mHe);
+		payload.position(DecoState.extraOffset(mCompartments));
+		writeExtraState(payload);
+		return DecoState.seal(payload);
+	}
+
+	/**
+	 * Load a state saved by getState.
+	 * @param state The state, or null to start from saturation with air at
+	 * sea level
+	 * @throws IllegalArgumentException if the state can't be read by this
+	 * algorithm
+	 */
+	public void loadState(byte[] state) {
+		if(state == null) {
+			resetState();
+			return;
+		}
+		final ByteBuffer payload = DecoState.open(state, mCompartments);
+		final int extra = DecoState.extraOffset(mCompartments);
+		final boolean readExtra = DecoState.getAlgorithm(state) == getAlgorithmId()
+				&& payload.limit() - extra >= getExtraStateSize();
+		if(! readExtra) {
+			// Whatever the algorithm keeps besides the compartments starts
+			// over, rather than carrying on from its last run
+			resetState();
+		}
+		mSurfacePressure = payload.getFloat(DecoState.SURFACE_PRESSURE);
+		mRuntime = payload.getFloat(DecoState.RUNTIME);
+		mDepth = payload.getInt(DecoState.DEPTH);
+		mGasSource = DecoState.unpackGasSource(payload.getInt(DecoState.GAS_SOURCE));
+		payload.position(DecoState.LOADINGS);
+		payload.asDoubleBuffer().get(mN2).get(mHe);
+		if(readExtra) {
+			payload.position(extra);
+			readExtraState(payload);
+		}
+	}
+
+	public void setDecoset(Decoset set) {
+		if(set == null) {
+			mSwitchDepths = new int[0];
+			mSwitchSources = new GasSource[0];
+			return;
+		}
+		// Copy the switches into arrays so looking up a gas during an ascent
+		// doesn't have to create an Iterator
+		final SortedSet<Decoset.Item> items = set.getItems();
+		final int n = items.size();
+		mSwitchDepths = new int[n];
+		mSwitchSources = new GasSource[n];
+		int i = 0;
+		for(Decoset.Item item: items) {
+			mSwitchDepths[i] = item.getMaxDepth();
+			mSwitchSources[i++] = item.getGasSource();
+		}
+	}
+
+	/**
+	 * Find the decompression gas to breathe at a given depth, as set by the
+	 * Decoset.
+	 * @param depth The depth
+	 * @return The GasSource with the shallowest switch depth that is at or
+	 * below depth, or null if depth is deeper than every switch
+	 */
+	protected GasSource decoGasAtDepth(int depth) {
+		GasSource best = null;
+		for(int i = 0; i < mSwitchDepths.length && mSwitchDepths[i] >= depth; i++) {
+			best = mSwitchSources[i];
+		}
+		return best;
+	}
+
+	public float getRuntime() {
+		return mRuntime;
+	}
+
+	public GasSource getGasSource() {
+		return mGasSource;
+	}
+
+	/**
+	 * @return The depth the diver is currently at
+	 */
+	public int getDepth() {
+		return mDepth;
+	}
+
+	protected double pressureAtDepth(double depth) {
+		return depth / mUnits.depthPerAtm() + mSurfacePressure;
+	}
+
+	protected double depthAtPressure(double pressure) {
+		return (pressure - mSurfacePressure) * mUnits.depthPerAtm();
+	}
+
+	/**
+	 * Compute the inspired partial pressure of nitrogen at depth, accounting
+	 * for water vapor in the lungs
+	 */
+	protected double inspiredN2(GasSource source, int depth) {
+		// Lowering the surface pressure by the water vapor pressure is the
+		// same as subtracting it from the ambient pressure, for both open and
+		// closed circuit
+		return Math.max(source.pN2AtDepth(depth, mSurfacePressure - (float)WATER_VAPOR_PRESSURE, mUnits), 0);
+	}
+
+	/**
+	 * Compute the inspired partial pressure of helium at depth, accounting
+	 * for water vapor in the lungs
+	 */
+	protected double inspiredHe(GasSource source, int depth) {
+		return Math.max(source.pHeAtDepth(depth, mSurfacePressure - (float)WATER_VAPOR_PRESSURE, mUnits), 0);
+	}
+
+	/**
+	 * Load compartments for a linear change in inspired pressure, using the
+	 * Schreiner equation.
+	 * @param p The compartment loadings to update
+	 * @param k The rate constant of each compartment
+	 * @param decay The decay factor exp(-kt) of each compartment
+	 * @param pi The inspired pressure at the start
+	 * @param r The rate of change of the inspired pressure, per minute
+	 * @param t The duration in minutes
+	 */
+	protected static void schreiner(double[] p, double[] k, double[] decay, double pi, double r, double t) {
+		for(int c = 0; c < p.length; c++) {
+			p[c] = schreiner(p[c], k[c], decay[c], pi, r, t);
+		}
+	}
+
+	/**
+	 * The Schreiner equation for a single compartment
+	 * @return The loading at the end of the change
+	 */
+	protected static double schreiner(double p, double k, double decay, double pi, double r, double t) {
+		return pi + r * (t - 1 / k) - (pi - p - r / k) * decay;
+	}
+
+	/**
+	 * Load compartments for a constant inspired pressure, using the Haldane
+	 * equation.
+	 * @param p The compartment loadings to update
+	 * @param decay The decay factor exp(-kt) of each compartment
+	 * @param pi The inspired pressure
+	 */
+	protected static void decay(double[] p, double[] decay, double pi) {
+		for(int c = 0; c < p.length; c++) {
+			p[c] = pi + (p[c] - pi) * decay[c];
+		}
+	}
+
+	/**
+	 * Change depth at a constant rate while breathing the current gas source
+	 * @param depth The depth to go to
+	 * @param rate The rate of the depth change, in depth units per minute
+	 * @return The time it took
+	 */
+	protected float travel(int depth, float rate) {
+		if(depth == mDepth) {
+			return 0;
+		}
+		final float time = Math.abs(depth - mDepth) / rate;
+		final GasSource source = mGasSource;
+		final double n2i = inspiredN2(source, mDepth), hei = inspiredHe(source, mDepth);
+		schreiner(mN2, mN2Rates, mN2Decay.factors(time), n2i, (inspiredN2(source, depth) - n2i) / time, time);
+		schreiner(mHe, mHeRates, mHeDecay.factors(time), hei, (inspiredHe(source, depth) - hei) / time, time);
+		mDepth = depth;
+		mRuntime += time;
+		return time;
+	}
+
+	/**
+	 * Stay at the current depth breathing the current gas source
+	 * @param time The time to stay, in minutes
+	 */
+	protected void stay(float time) {
+		if(time <= 0) {
+			return;
+		}
+		decay(mN2, mN2Decay.factors(time), inspiredN2(mGasSource, mDepth));
+		decay(mHe, mHeDecay.factors(time), inspiredHe(mGasSource, mDepth));
+		mRuntime += time;
+	}
+
+	private void stayMinute() {
+		decay(mN2, mN2Decay.factors(1), inspiredN2(mGasSource, mDepth));
+		decay(mHe, mHeDecay.factors(1), inspiredHe(mGasSource, mDepth));
+		mRuntime ++;
+	}
+
+	/**
+	 * Compute the ceiling of the current compartment state
+	 * @param depth The depth being ascended to, passed on to toleratedPressure
+	 * @return The lowest tolerated ambient pressure over all compartments, in ATA
+	 */
+	protected double ceilingPressure(int depth) {
+		double ceiling = 0;
+		for(int c = 0; c < mCompartments; c++) {
+			ceiling = Math.max(ceiling, toleratedPressure(c, mN2[c], mHe[c], depth));
+		}
+		return ceiling;
+	}
+
+	protected boolean canAscendTo(int depth) {
+		return ceilingPressure(depth) <= pressureAtDepth(depth);
+	}
+
+	/**
+	 * Find the next depth the diver may stop at when ascending
+	 * @param depth The depth the diver is ascending from
+	 * @param target The shallowest depth the ascent goes to
+	 */
+	private int nextStopDepth(int depth, int target) {
+		final int increment = mStopIncrement;
+		int next = depth % increment == 0? depth - increment: depth / increment * increment;
+		if(next < mLastStopDepth) {
+			// Everything between the last stop and the surface is done in
+			// one go
+			next = 0;
+		}
+		return Math.max(next, target);
+	}
+
+	/**
+	 * Work out how long a compartment needs to off-gas at the current depth
+	 * before it tolerates the ambient pressure at the next stop. Stops are
+	 * made in whole minutes, so this only finds the time to the minute: it
+	 * brackets it by doubling until the compartment clears, then bisects.
+	 * That takes a handful of evaluations however long the stop is.
+	 * Subclasses that can invert their tolerance exactly may override this to
+	 * solve it directly.
+	 * @param c The index of the compartment
+	 * @param pN2 The nitrogen loading of the compartment at the start of the
+	 * stop
+	 * @param pHe The helium loading of the compartment at the start of the stop
+	 * @param n2i The inspired nitrogen pressure during the stop
+	 * @param hei The inspired helium pressure during the stop
+	 * @param next The depth of the next stop
+	 * @param ambient The ambient pressure at the next stop, in ATA
+	 * @return The time in minutes, which may be fractional and is rounded up
+	 * by the caller, or Double.POSITIVE_INFINITY if the compartment won't
+	 * clear within MAX_STOP_TIME
+	 */
+	protected double stopClearTime(int c, double pN2, double pHe, double n2i, double hei, int next, double ambient) {
+		if(toleratesAfter(c, pN2, pHe, n2i, hei, next, ambient, 0)) {
+			return 0;
+		}
+		int low = 0, high = 1;
+		while(! toleratesAfter(c, pN2, pHe, n2i, hei, next, ambient, high)) {
+			if(high >= MAX_STOP_TIME) {
+				return Double.POSITIVE_INFINITY;
+			}
+			low = high;
+			high *= 2;
+		}
+		while(high - low > 1) {
+			final int mid = (low + high) >>> 1;
+			if(toleratesAfter(c, pN2, pHe, n2i, hei, next, ambient, mid)) {
+				high = mid;
+			} else {
+				low = mid;
+			}
+		}
+		return high;
+	}
+
+	/**
+	 * Work out how long a compartment can on-gas at constant inspired
+	 * pressures before it no longer tolerates a given ambient pressure. This
+	 * is the mirror image of stopClearTime, and works the same way.
+	 * @param c The index of the compartment
+	 * @param pN2 The nitrogen loading of the compartment now
+	 * @param pHe The helium loading of the compartment now
+	 * @param n2i The inspired nitrogen pressure
+	 * @param hei The inspired helium pressure
+	 * @param depth The depth that would be ascended to, passed on to
+	 * toleratedPressure
+	 * @param ambient The ambient pressure at that depth, in ATA
+	 * @return The time in minutes, which may be rounded down to a whole
+	 * minute, or Double.POSITIVE_INFINITY if the compartment keeps tolerating
+	 * the pressure for at least MAX_STOP_TIME
+	 */
+	protected double noStopTime(int c, double pN2, double pHe, double n2i, double hei, int depth, double ambient) {
+		if(! toleratesAfter(c, pN2, pHe, n2i, hei, depth, ambient, 0)) {
+			return 0;
+		}
+		int low = 0, high = 1;
+		while(toleratesAfter(c, pN2, pHe, n2i, hei, depth, ambient, high)) {
+			if(high >= MAX_STOP_TIME) {
+				return Double.POSITIVE_INFINITY;
+			}
+			low = high;
+			high *= 2;
+		}
+		while(high - low > 1) {
+			final int mid = (low + high) >>> 1;
+			if(toleratesAfter(c, pN2, pHe, n2i, hei, depth, ambient, mid)) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Decide whether a compartment will tolerate an ambient pressure after
+	 * some time at constant inspired pressures
+	 */
+	private boolean toleratesAfter(int c, double pN2, double pHe, double n2i, double hei, int depth, double ambient, int time) {
+		return toleratedPressure(c, n2i + (pN2 - n2i) * mN2Decay.factors(time)[c],
+				hei + (pHe - hei) * mHeDecay.factors(time)[c], depth) <= ambient;
+	}
+
+	/**
+	 * Stay at the current depth until the ceiling allows an ascent to the
+	 * next stop.
+	 * @param next The depth of the next stop
+	 * @return The length of the stop in minutes
+	 */
+	private int stopTime(int next) {
+		// The stop lasts until the slowest compartment clears, rounded up to
+		// the next whole minute
+		final double n2i = inspiredN2(mGasSource, mDepth), hei = inspiredHe(mGasSource, mDepth);
+		final double ambient = pressureAtDepth(next);
+		double longest = 0;
+		for(int c = 0; c < mCompartments; c++) {
+			longest = Math.max(longest, stopClearTime(c, mN2[c], mHe[c], n2i, hei, next, ambient));
+		}
+		if(longest > MAX_STOP_TIME) {
+			throw new IllegalStateException("Stop at " + mDepth + " could not be cleared breathing " + mGasSource);
+		}
+		int time = (int)Math.ceil(longest - STOP_TIME_SLACK);
+		stay(time);
+		// A compartment whose tolerance isn't monotonic in time, or rounding
+		// in the solver, could still leave the ceiling below the next stop.
+		// Finish off a minute at a time in that case.
+		while(! canAscendTo(next)) {
+			if(time >= MAX_STOP_TIME) {
+				throw new IllegalStateException("Stop at " + mDepth + " could not be cleared breathing " + mGasSource);
+			}
+			checkLimit();
+			stayMinute();
+			time ++;
+		}
+		return time;
+	}
+
+	public void setLimit(RunLimit limit) {
+		mLimit = limit;
+	}
+
+	/**
+	 * @throws RunLimit.ExceededException if the limit has been passed
+	 */
+	private void checkLimit() {
+		if(mLimit != null) {
+			mLimit.check();
+		}
+	}
+
+	private void addStop(int depth, int time, float travelTime) {
+		if(mStopCount == mStopDepths.length) {
+			final int size = mStopCount * 2;
+			mStopDepths = Arrays.copyOf(mStopDepths, size);
+			mStopTimes = Arrays.copyOf(mStopTimes, size);
+			mStopTravelTimes = Arrays.copyOf(mStopTravelTimes, size);
+			mStopSources = Arrays.copyOf(mStopSources, size);
+		}
+		mStopDepths[mStopCount] = depth;
+		mStopTimes[mStopCount] = time;
+		mStopTravelTimes[mStopCount] = travelTime;
+		mStopSources[mStopCount ++] = mGasSource;
+	}
+
+	/**
+	 * Ascend from the current depth to a shallower one, making whatever stops
+	 * the ceiling requires along the way. The stops are left in the stop
+	 * buffers until buildStops is called, and are discarded by the next ascent.
+	 * @param target The depth to ascend to
+	 */
+	protected final void ascend(int target) {
+		mStopCount = 0;
+		float travelTime = 0;
+
+		// Go straight up to the first depth the ceiling might keep us at
+		final double ceiling = depthAtPressure(ceilingPressure(mDepth));
+		int firstStop = Math.max((int)Math.ceil(ceiling / mStopIncrement) * mStopIncrement, target);
+		if(firstStop > target && firstStop < mLastStopDepth) {
+			firstStop = Math.min(mLastStopDepth, mDepth);
+		}
+		if(firstStop < mDepth) {
+			travelTime += travel(firstStop, mAscentRate);
+		}
+
+		// Now go up one stop at a time. The compartments off-gassed on the way
+		// here, so we may not need to stop at all.
+		while(mDepth > target) {
+			final int next = nextStopDepth(mDepth, target);
+			checkLimit();
+			if(! canAscendTo(next)) {
+				beginStop(mDepth);
+				final GasSource decoGas = decoGasAtDepth(mDepth);
+				if(decoGas != null) {
+					mGasSource = decoGas;
+				}
+				final int time = stopTime(next);
+				if(time > 0) {
+					addStop(mDepth, time, travelTime);
+					travelTime = 0;
+				}
+			}
+			travelTime += travel(next, mAscentRate);
+		}
+		mTravelTime = travelTime;
+	}
+
+	/**
+	 * @return The number of stops made by the last ascent
+	 */
+	protected final int getStopCount() {
+		return mStopCount;
+	}
+
+	/**
+	 * Build ProfileItems for the stops of the last ascent
+	 */
+	protected final ProfileItem[] buildStops() {
+		final int count = mStopCount;
+		if(count == 0) {
+			return NO_STOPS;
+		}
+		final ProfileItem[] stops = new ProfileItem[count];
+		for(int i = 0; i < count; i++) {
+			stops[i] = new ProfileItem()
+					.setDepth(mStopDepths[i])
+					.setTime(mStopTimes[i])
+					.setTimeType(ProfileItem.TIME_TYPE_SEG)
+					.setGasSource(mStopSources[i])
+					.setLineSource(ProfileItem.SOURCE_DECO)
+					.setValid(ProfileItem.VALID)
+					.setSegtime(mStopTimes[i])
+					.setDepthChangeTime(mStopTravelTimes[i]);
+			// Don't hold on to gas sources the caller may want to discard
+			mStopSources[i] = null;
+		}
+		mStopCount = 0;
+		return stops;
+	}
+
+	public ProfileItem[] run(ProfileItem item) {
+		final ProfileItem[] stops = runLine(item.getDepth(), item.getTime(), item.getTimeType(), item.getGasSource());
+		item.setSegtime(mSegtime);
+		item.setDepthChangeTime(mDepthChangeTime);
+		return stops;
+	}
+
+	public ProfileItem[] run(ResolvedProfile profile, int line) {
+		final ProfileItem[] stops = runLine(profile.getDepth(line), profile.getTime(line),
+				profile.getTimeType(line), profile.getGasSource(line));
+		profile.setSegtime(line, mSegtime);
+		profile.setDepthChangeTime(line, mDepthChangeTime);
+		return stops;
+	}
+
+	/**
+	 * Run a profile line, leaving its segment and depth change times in
+	 * mSegtime and mDepthChangeTime
+	 * @return The stops made on the way to the line's depth
+	 */
+	protected ProfileItem[] runLine(int depth, int time, int timeType, GasSource source) {
+		if(mGasSource == null) {
+			mGasSource = source;
+		}
+		// The depth change is made on whatever we were breathing before; the
+		// switch to this item's gas source happens on arrival.
+		ProfileItem[] stops = NO_STOPS;
+		float travelTime = 0;
+		if(depth > mDepth) {
+			travelTime = travel(depth, mDescentRate);
+		} else if(depth < mDepth) {
+			ascend(depth);
+			stops = buildStops();
+			travelTime = mTravelTime;
+		}
+		mGasSource = source;
+
+		float segtime;
+		if(timeType == ProfileItem.TIME_TYPE_RUN) {
+			segtime = time - mRuntime;
+		} else {
+			segtime = time - travelTime;
+		}
+		segtime = Math.max(segtime, 0);
+		stay(segtime);
+		mSegtime = segtime;
+		mDepthChangeTime = travelTime;
+		return stops;
+	}
+
+	/**
+	 * Ascend from the current depth to the surface, leaving the stops in the
+	 * stop buffers. Algorithms that plan the final ascent differently from
+	 * the others override this.
+	 */
+	protected void ascendToSurface() {
+		ascend(0);
+	}
+
+	public ProfileItem[] surface() {
+		ascendToSurface();
+		return buildStops();
+	}
+
+	/**
+	 * Bring whatever toleratedPressure depends on up to date with the current
+	 * state, before a ceiling is worked out outside of an ascent. Algorithms
+	 * that override this override restoreTolerances too.
+	 */
+	protected void updateTolerances() { }
+
+	/**
+	 * Put back whatever updateTolerances changed, once the ceiling has been
+	 * worked out, so asking for it leaves the state as it was
+	 */
+	protected void restoreTolerances() { }
+
+	/**
+	 * @return The depth of the first stop of the dive so far, for models that
+	 * allow more supersaturation the further the ascent has come from it, or
+	 * -1 if there hasn't been one or the model doesn't care
+	 */
+	protected int getFirstStop() {
+		return -1;
+	}
+
+	/**
+	 * Change the depth getFirstStop returns, to work out what an ascent would
+	 * tolerate without making it
+	 * @param depth The depth of the first stop, or -1 for none
+	 */
+	protected void setFirstStop(int depth) { }
+
+	/**
+	 * The no-decompression limit is the time until an ascent from the depth
+	 * would have to stop. Such an ascent checks at each stop depth on the way
+	 * up whether it can go on to the next one, after off-gassing on the way
+	 * there, and if it can't, whether it can once that depth is its first
+	 * stop. Loading at the end of a depth change is linear in loading at the
+	 * start of it, so over the time spent at depth the loading on arrival at
+	 * each stop depth still follows a Haldane curve, and noStopTime can solve
+	 * for it directly.
+	 */
+	public float getNdl(int depth, GasSource source) {
+		updateTolerances();
+		final double n2i = inspiredN2(source, depth), hei = inspiredHe(source, depth);
+		final int firstStop = getFirstStop();
+		final double[] n2 = mScratchN2, he = mScratchHe, n2Limit = mScratchN2Limit, heLimit = mScratchHeLimit;
+		double ndl = Double.POSITIVE_INFINITY;
+		for(int stop = depth; stop > 0; ) {
+			final int next = nextStopDepth(stop, 0);
+			final float time = (depth - stop) / mAscentRate;
+			final double n2r = time > 0? (inspiredN2(source, stop) - n2i) / time: 0,
+					her = time > 0? (inspiredHe(source, stop) - hei) / time: 0;
+			final double[] n2Decay = mN2Decay.factors(time), heDecay = mHeDecay.factors(time);
+			for(int c = 0; c < mCompartments; c++) {
+				final double n2Kept = n2Decay[c], heKept = heDecay[c];
+				final double n2Gained = schreiner(0, mN2Rates[c], n2Kept, n2i, n2r, time),
+						heGained = schreiner(0, mHeRates[c], heKept, hei, her, time);
+				n2[c] = n2Gained + n2Kept * mN2[c];
+				he[c] = heGained + heKept * mHe[c];
+				n2Limit[c] = n2Gained + n2Kept * n2i;
+				heLimit[c] = heGained + heKept * hei;
+			}
+			double limit = noStopTime(n2, he, n2Limit, heLimit, next);
+			if(firstStop < 0) {
+				setFirstStop(stop);
+				limit = Math.max(limit, noStopTime(n2, he, n2Limit, heLimit, next));
+				setFirstStop(firstStop);
+			}
+			ndl = Math.min(ndl, limit);
+			stop = next;
+		}
+		restoreTolerances();
+		return (float)ndl;
+	}
+
+	/**
+	 * Find the time until some compartment no longer tolerates the pressure
+	 * at a depth
+	 */
+	private double noStopTime(double[] n2, double[] he, double[] n2i, double[] hei, int depth) {
+		final double ambient = pressureAtDepth(depth);
+		double time = Double.POSITIVE_INFINITY;
+		for(int c = 0; c < mCompartments; c++) {
+			time = Math.min(time, noStopTime(c, n2[c], he[c], n2i[c], hei[c], depth, ambient));
+		}
+		return time;
+	}
+
+	public float getTimeToSurface() {
+		return getTimeToSurface(0);
+	}
+
+	public float getTimeToSurface(float time) {
+		if(mGasSource == null) {
+			// Not in the water
+			return 0;
+		}
+		saveAhead();
+		stay(time);
+		final float start = mRuntime;
+		ascendToSurface();
+		final float tts = mRuntime - start;
+		restoreAhead();
+		return tts;
+	}
+
+	/**
+	 * Save everything getState would, without allocating anything after the
+	 * first call. Algorithms with state an ascent changes that getState
+	 * doesn't save override this and restoreAhead to keep it too.
+	 */
+	protected void saveAhead() {
+		System.arraycopy(mN2, 0, mAheadN2, 0, mCompartments);
+		System.arraycopy(mHe, 0, mAheadHe, 0, mCompartments);
+		mAheadRuntime = mRuntime;
+		mAheadDepth = mDepth;
+		mAheadGasSource = mGasSource;
+		if(mAheadExtra == null) {
+			mAheadExtra = ByteBuffer.allocate(getExtraStateSize());
+		}
+		mAheadExtra.clear();
+		writeExtraState(mAheadExtra);
+	}
+
+	/**
+	 * Go back to the state saveAhead saved
+	 */
+	protected void restoreAhead() {
+		System.arraycopy(mAheadN2, 0, mN2, 0, mCompartments);
+		System.arraycopy(mAheadHe, 0, mHe, 0, mCompartments);
+		mRuntime = mAheadRuntime;
+		mDepth = mAheadDepth;
+		mGasSource = mAheadGasSource;
+		mAheadExtra.rewind();
+		readExtraState(mAheadExtra);
+	}
+
+	/**
+	 * Load the compartments for a steady change between two depths over a
+	 * short time, as between two samples from a logger, and move to the
+	 * whole depth nearest the second. The depths needn't be whole units.
+	 * Nothing is allocated.
+	 * @param from The depth at the start of the change
+	 * @param to The depth at the end of the change
+	 * @param time The time the change took, in minutes
+	 * @param source The gas source breathed during the change
+	 */
+	protected void sample(float from, float to, float time, GasSource source) {
+		if(time > 0) {
+			final double n2i = inspiredN2(source, from), hei = inspiredHe(source, from);
+			final double n2r = (inspiredN2(source, to) - n2i) / time, her = (inspiredHe(source, to) - hei) / time;
+			for(int c = 0; c < mCompartments; c++) {
+				mN2[c] = schreiner(mN2[c], mN2Rates[c], Math.exp(-mN2Rates[c] * time), n2i, n2r, time);
+				mHe[c] = schreiner(mHe[c], mHeRates[c], Math.exp(-mHeRates[c] * time), hei, her, time);
+			}
+		}
+		mDepth = Math.round(to);
+		mRuntime += time;
+		mGasSource = source;
+	}
+
+	/**
+	 * The inspired nitrogen pressure at a depth between whole units. Partial
+	 * pressures are linear in depth, so this interpolates between the whole
+	 * depths either side.
+	 */
+	private double inspiredN2(GasSource source, float depth) {
+		final int below = (int)Math.floor(depth);
+		final double p = inspiredN2(source, below);
+		return below == depth? p: p + (inspiredN2(source, below + 1) - p) * (depth - below);
+	}
+
+	private double inspiredHe(GasSource source, float depth) {
+		final int below = (int)Math.floor(depth);
+		final double p = inspiredHe(source, below);
+		return below == depth? p: p + (inspiredHe(source, below + 1) - p) * (depth - below);
+	}
+
+	public float getCeiling() {
+		updateTolerances();
+		final float ceiling = (float)Math.max(depthAtPressure(ceilingPressure(mDepth)), 0);
+		restoreTolerances();
+		return ceiling;
+	}
+
+	public void surfaceInterval(int altitude, int time, GasSource source) {
+		mSurfacePressure = GasSource.pressureAtAltitude(altitude, mUnits);
+		mDepth = 0;
+		if(time > 0) {
+			decay(mN2, mN2Decay.factors(time), inspiredN2(source, 0));
+			decay(mHe, mHeDecay.factors(time), inspiredHe(source, 0));
+		}
+		// Whatever comes next is a new dive
+		mRuntime = 0;
+		mGasSource = null;
+		beginDive();
+	}
+}
\ No newline at end of file
@@ -20,9 +20,19 @@ public class CnsOtu {
 		mCns = resCNS;
 		mOtu = resOTU;
 	}
+
+	/**
+	 * Build a CNS/OTU model partway through a dive
+	 * @param depth The depth the diver is at
+	 */
+	public CnsOtu(int altitude, Units units, float cns, float otu, int depth) {
+		this(altitude, units, cns, otu);
+		mDepth = depth;
+	}
 	
 	public float getCns() { return mCns; }
 	public float getOtu() { return mOtu; }
+	public int getDepth() { return mDepth; }
 	
 	/**
 	 * Execute a depth change on the CNS/OTU model, and compute the result.
@@ -34,9 +44,10 @@ public class CnsOtu {
 	 */
 	public void changeDepth(int newDepth, float time, GasSource source) throws MaxPo2ExceededException {
 		final double po2i = source.pO2AtDepth(mDepth, mSurfacePressure, mUnits);
-		final double po2f = source.pO2AtDepth(mDepth, mSurfacePressure, mUnits);
+		final double po2f = source.pO2AtDepth(newDepth, mSurfacePressure, mUnits);
 		mCns += getCNSPerMinute(po2i, po2f) * time;
 		mOtu += getOTUPerMinute(po2i, po2f) * time;
+		mDepth = newDepth;
 	}
 	
 	/**
@@ -52,6 +63,125 @@ public class CnsOtu {
 		mOtu += getOTUPerMinute(po2) * time;
 	}
 
+	/**
+	 * Execute a line of a ResolvedProfile that a DecoAlgorithm has run: the
+	 * depth change to it, then the time spent there.
+	 * @param profile The profile
+	 * @param line The index of the line
+	 * @param source The GasSource being breathed during the depth change
+	 * @throws MaxPo2ExceededException
+	 */
+	public void run(ResolvedProfile profile, int line, GasSource source) throws MaxPo2ExceededException {
+		changeDepth(profile.getDepth(line), profile.getDepthChangeTime(line), source);
+		run(profile.getSegtime(line), profile.getGasSource(line));
+	}
+
+	/**
+	 * What each segment of a batch added, and the totals after each
+	 */
+	public static class Exposure {
+		private final float[] mCns, mOtu, mTotalCns, mTotalOtu;
+
+		Exposure(int count) {
+			mCns = new float[count];
+			mOtu = new float[count];
+			mTotalCns = new float[count];
+			mTotalOtu = new float[count];
+		}
+
+		public int getCount() { return mCns.length; }
+		public float getCns(int segment) { return mCns[segment]; }
+		public float getOtu(int segment) { return mOtu[segment]; }
+		public float getTotalCns(int segment) { return mTotalCns[segment]; }
+		public float getTotalOtu(int segment) { return mTotalOtu[segment]; }
+	}
+
+	/**
+	 * Execute a batch of segments, such as a whole profile or a row of a
+	 * table. A segment spends its time changing steadily from its start
+	 * depth to its end depth, or staying put if they're the same. The pO2 of
+	 * each gas is looked up once at every whole depth the batch reaches, so
+	 * the segments themselves are run without going back to the gases.
+	 * @param from The depth each segment starts at
+	 * @param to The depth each segment ends at
+	 * @param time The time each segment takes
+	 * @param gas The index in gases of the gas breathed during each segment
+	 * @param gases The gases the batch uses
+	 * @param count The number of segments to use from the arrays
+	 * @return The CNS and OTU of each segment, and the totals after it
+	 * including what the model started with
+	 * @throws MaxPo2ExceededException
+	 */
+	public Exposure run(int[] from, int[] to, float[] time, int[] gas, GasSource[] gases, int count) throws MaxPo2ExceededException {
+		int maxDepth = 0;
+		for(int i = 0; i < count; i++) {
+			maxDepth = Math.max(maxDepth, Math.max(from[i], to[i]));
+		}
+		final double[][] po2s = new double[gases.length][maxDepth + 1];
+		for(int g = 0; g < gases.length; g++) {
+			for(int d = 0; d <= maxDepth; d++) {
+				po2s[g][d] = gases[g].pO2AtDepth(d, mSurfacePressure, mUnits);
+			}
+		}
+
+		final Exposure exposure = new Exposure(count);
+		double cns = mCns, otu = mOtu;
+		for(int i = 0; i < count; i++) {
+			final double[] po2 = po2s[gas[i]];
+			final double po2i = po2[from[i]], po2f = po2[to[i]];
+			final float segmentCns = getCNSPerMinute(po2i, po2f) * time[i],
+					segmentOtu = getOTUPerMinute(po2i, po2f) * time[i];
+			cns += segmentCns;
+			otu += segmentOtu;
+			exposure.mCns[i] = segmentCns;
+			exposure.mOtu[i] = segmentOtu;
+			exposure.mTotalCns[i] = (float)cns;
+			exposure.mTotalOtu[i] = (float)otu;
+		}
+		mCns = (float)cns;
+		mOtu = (float)otu;
+		if(count > 0) {
+			mDepth = to[count - 1];
+		}
+		return exposure;
+	}
+
+	/**
+	 * Execute the exposure between two samples from a logger, during which
+	 * the diver moved steadily from one depth to another, and move to the
+	 * second. The depths needn't be whole units. Samples are close enough
+	 * together that the pO2 halfway between them stands for the whole
+	 * interval.
+	 * @param from The depth at the first sample
+	 * @param to The depth at the second sample
+	 * @param time The time between the samples
+	 * @param source The GasSource breathed in between
+	 * @throws MaxPo2ExceededException
+	 */
+	public void sample(float from, float to, float time, GasSource source) throws MaxPo2ExceededException {
+		final float middle = (from + to) / 2;
+		final int below = (int)Math.floor(middle);
+		double po2 = source.pO2AtDepth(below, mSurfacePressure, mUnits);
+		if(below != middle) {
+			po2 += (source.pO2AtDepth(below + 1, mSurfacePressure, mUnits) - po2) * (middle - below);
+		}
+		mCns += getCNSPerMinute(po2) * time;
+		mOtu += getOTUPerMinute(po2) * time;
+		mDepth = Math.round(to);
+	}
+
+	// The half time of CNS loading at the surface, in minutes
+	public static final float CNS_HALF_TIME = 90;
+
+	/**
+	 * Get what's left of a CNS loading after time at the surface
+	 * @param cns The CNS loading on surfacing
+	 * @param time The time spent at the surface in minutes
+	 */
+	public static float decayCns(float cns, float time) {
+		return time <= 0? cns: (float)(cns * Math.pow(0.5, time / CNS_HALF_TIME));
+	}
+
 	// Uses NOAA data with linear interpolation at lower pO2's to get CNS
 	// loading rate in percent per minute at the passed pO2 in ATA.
 	public static float getCNSPerMinute(double po2) throws MaxPo2ExceededException {
@@ -93,52 +223,133 @@ public class CnsOtu {
 			return 0.83f;
 		} else if(po2 <= 1.55) {
 			return 1.12f;
-		} else if(po2 <= 1.6) {
+		} else if(po2 <= MAX_PO2 + PO2_ROUNDING) {
 			return 2.22f;
 		} else {
 			throw new MaxPo2ExceededException();
 		}
 	}
 
-	public static float getCNSPerMinute(double po2i, double po2f) throws MaxPo2ExceededException {
-		// This method does a sum of the contributions of the highest pO2 and
-		// all po2's on a 0.05 interval and weights them by the interval width
-		// (the first and last pO2's can be off-interval, affecting the end
-		// widths)
-		final double po2Hi = Math.max(po2i, po2f);
-		final double po2Lo = Math.min(po2i, po2f);
-		double change = po2Hi - po2Lo;
-		float result = 0;
-		float interval;
-		for(double p = po2Hi; p > po2Lo; p -= interval) {
-			final float pDev = (float)p / 0.05f - (int)(p / 0.05);
-			if(pDev > 0) {
-				// p is not a multiple of our interval. Set interval to the
-				// difference
-				interval = pDev;
-			} else {
-				// Set the interval to either 0.05 or, if we're at the last
-				// segment, the distance between the current value and the
-				// low pO2.
-				interval = Math.min((float)(p - po2Lo), 0.05f);
+	// The width of the pO2 steps in the CNS table. Every change in the loading
+	// rate falls on a multiple of this.
+	private static final double CNS_STEP = 0.05;
+	private static final double MAX_PO2 = 1.6;
+	// pO2's are worked out in float, so one that should be exactly the
+	// maximum, like oxygen at 6 meters, can come out a hair over it
+	private static final double PO2_ROUNDING = 1e-6;
+
+	// CNS_INTEGRAL[k] is the integral of getCNSPerMinute from 0 to k steps,
+	// so the loading from a steady change in pO2 is a difference of two
+	// lookups.
+	private static final double[] CNS_INTEGRAL = new double[(int)Math.round(MAX_PO2 / CNS_STEP) + 1];
+	static {
+		try {
+			for(int k = 1; k < CNS_INTEGRAL.length; k++) {
+				CNS_INTEGRAL[k] = CNS_INTEGRAL[k - 1] + CNS_STEP * getCNSPerMinute((k - 0.5) * CNS_STEP);
 			}
-			result += getCNSPerMinute(p) * interval / change;
+		} catch(MaxPo2ExceededException e) {
+			throw new IllegalStateException(e);
 		}
+	}
 
-		return result;
+	/**
+	 * The integral of getCNSPerMinute from 0 to a pO2. Within a step the
+	 * rate is either constant or linear, so the rate halfway along the
+	 * part of the step that's covered gives the part's integral exactly.
+	 */
+	private static double cnsIntegral(double po2) throws MaxPo2ExceededException {
+		if(po2 > MAX_PO2 + PO2_ROUNDING) {
+			throw new MaxPo2ExceededException();
+		}
+		po2 = Math.min(po2, MAX_PO2);
+		final int k = (int)(po2 / CNS_STEP);
+		final double start = k * CNS_STEP;
+		return CNS_INTEGRAL[k] + (po2 - start) * getCNSPerMinute((start + po2) / 2);
 	}
 
+	/**
+	 * Get the average CNS loading rate over a steady change in pO2
+	 * @param po2i The pO2 at the start of the change
+	 * @param po2f The pO2 at the end of the change
+	 * @return The loading rate in percent per minute
+	 * @throws MaxPo2ExceededException
+	 */
+	public static float getCNSPerMinute(double po2i, double po2f) throws MaxPo2ExceededException {
+		if(po2i == po2f) {
+			return getCNSPerMinute(po2i);
+		}
+		return (float)((cnsIntegral(po2f) - cnsIntegral(po2i)) / (po2f - po2i));
+	}
+
+	// OTU's build up at pO2's over 0.5 ATA. Below the top of the table the
+	// rate and its integral are read from it; above it they're worked out
+	// directly.
+	private static final double OTU_THRESHOLD = 0.5;
+	private static final double OTU_STEP = 0.001;
+	private static final double OTU_TABLE_MAX = MAX_PO2 + 0.1;
+	private static final int OTU_TABLE_SIZE = (int)Math.round((OTU_TABLE_MAX - OTU_THRESHOLD) / OTU_STEP) + 1;
+
+	// OTU_RATE[k] is the OTU per minute at k steps over the threshold, and
+	// OTU_INTEGRAL[k] is its integral from the threshold to there.
+	private static final double[] OTU_RATE = new double[OTU_TABLE_SIZE],
+			OTU_INTEGRAL = new double[OTU_TABLE_SIZE];
+	static {
+		for(int k = 0; k < OTU_TABLE_SIZE; k++) {
+			OTU_RATE[k] = otuRate(OTU_THRESHOLD + k * OTU_STEP);
+			OTU_INTEGRAL[k] = otuIntegral(OTU_THRESHOLD + k * OTU_STEP);
+		}
+	}
+
+	// Uses the equation published in 2004 edition TDI Advanced Trimix manual
+	private static double otuRate(double po2) {
+		return Math.pow((po2 - OTU_THRESHOLD) / 0.5, 5.0 / 6);
+	}
+
+	// The integral of otuRate from the threshold to a pO2
+	private static double otuIntegral(double po2) {
+		return 3.0 / 11 * Math.pow((po2 - OTU_THRESHOLD) / 0.5, 11.0 / 6);
+	}
+
+	/**
+	 * Look a pO2 up in one of the OTU tables, interpolating between steps
+	 */
+	private static double lookup(double[] table, double po2) {
+		final double steps = (po2 - OTU_THRESHOLD) / OTU_STEP;
+		final int k = Math.min((int)steps, OTU_TABLE_SIZE - 2);
+		return table[k] + (table[k + 1] - table[k]) * (steps - k);
+	}
+
+	/**
+	 * Get the OTU's accumulated per minute at a constant pO2
+	 * @param po2 The pO2 in ATA
+	 */
 	public static float getOTUPerMinute(double po2) {
-		// Uses equation published in 2004 edition TDI Advanced Trimix manual
-		return (float)Math.pow(0.5 / (po2 - 0.05), -5/6);
+		if(po2 <= OTU_THRESHOLD) {
+			return 0;
+		}
+		return (float)(po2 < OTU_TABLE_MAX? lookup(OTU_RATE, po2): otuRate(po2));
 	}
 
+	private static double getOTUIntegral(double po2) {
+		if(po2 <= OTU_THRESHOLD) {
+			return 0;
+		}
+		return po2 < OTU_TABLE_MAX? lookup(OTU_INTEGRAL, po2): otuIntegral(po2);
+	}
+
+	/**
+	 * Get the average OTU's accumulated per minute over a steady change in
+	 * pO2. Any part of the change under the threshold adds nothing.
+	 * @param po2i The pO2 at the start of the change
+	 * @param po2f The pO2 at the end of the change
+	 */
 	public static float getOTUPerMinute(double po2i, double po2f) {
-		// Uses equation published in 2004 edition TDI Advanced Trimix manual
-		if(po2i == po2f) {
-			// Avoid divide by 0
-			return getOTUPerMinute(po2i);
+		if(Math.abs(po2f - po2i) < OTU_STEP) {
+			// Too small a change to take a difference of the table over.
+			// The rate is close enough to linear for its middle to stand for
+			// the whole change.
+			return getOTUPerMinute((po2i + po2f) / 2);
 		}
-		return (float)(3 / (11 * po2f - po2i) * (Math.pow((po2f - 0.5) / 0.5, 11/6) - Math.pow((po2f - 0.5) / 0.5, 11/6)));
+		return (float)((getOTUIntegral(po2f) - getOTUIntegral(po2i)) / (po2f - po2i));
 	}
 }
\ No newline at end of file
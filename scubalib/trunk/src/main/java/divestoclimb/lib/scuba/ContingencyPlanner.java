@@ -0,0 +1,183 @@
+package divestoclimb.lib.scuba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plans lost-gas contingencies for a dive: for each gas in the dive's
+ * Decoset, the ascent the diver would have to make without it.
+ *
+ * Every scenario starts from the same point, the end of the last profile
+ * line as of the dive's last deco run, so the dive itself is never replayed.
+ * The scenarios are planned in parallel and written to the end of the
+ * profile as inactive SOURCE_CONTINGENCY lines, one block per scenario in
+ * Decoset order. Each block is the scenario's stops followed by a line at
+ * the surface. Running the dive again removes them.
+ */
+public class ContingencyPlanner {
+
+	/**
+	 * The ascent planned for the loss of one gas
+	 */
+	public static class Scenario {
+		private final GasSource mLostGas;
+		private ProfileItem[] mStops;
+		private float mTimeToSurface, mCns, mOtu;
+		private Exception mError;
+
+		Scenario(GasSource lostGas) {
+			mLostGas = lostGas;
+		}
+
+		public GasSource getLostGas() { return mLostGas; }
+		public ProfileItem[] getStops() { return mStops; }
+		public float getTimeToSurface() { return mTimeToSurface; }
+		public float getCns() { return mCns; }
+		public float getOtu() { return mOtu; }
+
+		/**
+		 * @return The exception that kept this ascent from being planned,
+		 * like a CnsOtu.MaxPo2ExceededException, or null if it was
+		 */
+		public Exception getError() { return mError; }
+		public boolean isPlanned() { return mError == null; }
+	}
+
+	private final Dive mDive;
+	private final DecoAlgorithm.Factory mFactory;
+
+	/**
+	 * @param dive The dive to plan contingencies for. It must have been run
+	 * with ProfileIterator.runDeco.
+	 * @param factory Makes the DecoAlgorithms to plan with, one per scenario
+	 */
+	public ContingencyPlanner(Dive dive, DecoAlgorithm.Factory factory) {
+		mDive = dive;
+		mFactory = factory;
+	}
+
+	/**
+	 * Plan contingencies on a thread pool with one thread per processor
+	 * @see #plan(ExecutorService)
+	 */
+	public List<Scenario> plan() throws InterruptedException {
+		final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			return plan(executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Plan a lost-gas ascent for each gas in the dive's Decoset, and replace
+	 * the contingency lines in the dive's profile with them.
+	 * @param executor The ExecutorService to plan the scenarios on
+	 * @return The scenarios, in Decoset order
+	 * @throws IllegalStateException If the dive hasn't been run since the
+	 * previous dive was, or was run with a different kind of algorithm or
+	 * configuration than the factory makes
+	 * @throws InterruptedException If the thread was interrupted while
+	 * waiting for the scenarios
+	 */
+	public List<Scenario> plan(ExecutorService executor) throws InterruptedException {
+		final DecoCheckpoint bottom = mDive.getBottomCheckpoint();
+		if(bottom == null) {
+			throw new IllegalStateException("The dive must be run before planning contingencies");
+		}
+		if(! mDive.getDecoBasis(mFactory.newDecoAlgorithm()).equals(bottom.getBasis())) {
+			throw new IllegalStateException("The dive must be run again with the algorithm the contingencies are planned with");
+		}
+		final Decoset decoset = mDive.getDecoset();
+		final List<GasSource> gases = new ArrayList<GasSource>();
+		if(decoset != null) {
+			for(Decoset.Item i: decoset.getItems()) {
+				if(! gases.contains(i.getGasSource())) {
+					gases.add(i.getGasSource());
+				}
+			}
+		}
+
+		final List<Future<Scenario>> futures = new ArrayList<Future<Scenario>>(gases.size());
+		for(final GasSource lost: gases) {
+			futures.add(executor.submit(new Callable<Scenario>() {
+				public Scenario call() {
+					return planScenario(bottom, decoset.without(lost), lost);
+				}
+			}));
+		}
+		final List<Scenario> scenarios = new ArrayList<Scenario>(gases.size());
+		for(Future<Scenario> f: futures) {
+			try {
+				scenarios.add(f.get());
+			} catch(ExecutionException e) {
+				// planScenario catches the exceptions planning can throw, so
+				// this is a bug
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		final ProfileIterator it = new ProfileIterator(mDive, ProfileItem.SOURCE_CONTINGENCY);
+		it.removeMyItems();
+		for(Scenario s: scenarios) {
+			if(s.isPlanned()) {
+				writeScenario(it, s, bottom.getLastGasSource());
+			}
+		}
+		return scenarios;
+	}
+
+	private Scenario planScenario(DecoCheckpoint bottom, Decoset decoset, GasSource lost) {
+		final Scenario scenario = new Scenario(lost);
+		final DecoAlgorithm deco = mFactory.newDecoAlgorithm();
+		mDive.resumeDeco(deco, bottom);
+		deco.setDecoset(decoset);
+		final CnsOtu cnsOtu = mDive.buildCnsOtu(bottom);
+		try {
+			final float bottomRuntime = deco.getRuntime();
+			final ProfileItem[] stops = deco.surface();
+			final GasSource last = ProfileIterator.runCnsOtu(cnsOtu, stops, bottom.getLastGasSource());
+			float runtime = bottomRuntime;
+			for(int i = 0; i < stops.length; i++) {
+				runtime += stops[i].getDepthChangeTime() + stops[i].getSegtime();
+			}
+			cnsOtu.changeDepth(0, deco.getRuntime() - runtime, last);
+			scenario.mStops = stops;
+			scenario.mTimeToSurface = deco.getRuntime() - bottomRuntime;
+			scenario.mCns = cnsOtu.getCns();
+			scenario.mOtu = cnsOtu.getOtu();
+		} catch(Exception e) {
+			scenario.mError = e;
+		}
+		return scenario;
+	}
+
+	private static void writeScenario(ProfileIterator it, Scenario s, GasSource bottomGas) {
+		final ProfileItem[] stops = s.getStops();
+		final ProfileItem[] lines = new ProfileItem[stops.length + 1];
+		float travel = s.getTimeToSurface();
+		GasSource last = bottomGas;
+		for(int i = 0; i < stops.length; i++) {
+			lines[i] = stops[i].setActive(false);
+			travel -= stops[i].getDepthChangeTime() + stops[i].getSegtime();
+			last = stops[i].getGasSource();
+		}
+		// The surface line ends the block. It has no time, and the time to
+		// get there from the last stop.
+		lines[stops.length] = new ProfileItem()
+				.setDepth(0)
+				.setTime(0)
+				.setTimeType(ProfileItem.TIME_TYPE_SEG)
+				.setGasSource(last)
+				.setActive(false)
+				.setValid(ProfileItem.VALID)
+				.setSegtime(0)
+				.setDepthChangeTime(travel);
+		it.appendItems(lines);
+	}
+}
\ No newline at end of file
@@ -100,7 +100,7 @@ public class Cylinder implements Serializable {
 	 * capacity units
 	 */
 	public float getVdwCapacity() {
-		return (float)getVdwCapacityAtPressure(mServicePressure, new Mix(0.21f, 0));
+		return (float)getVdwCapacityAtPressure(mServicePressure, Mix.of(0.21, 0));
 	}
 	
 	public float getIdealCapacity() {
@@ -117,7 +117,7 @@ public class Cylinder implements Serializable {
 		// we are solving for V instead of n. The cubic
 		// polynomial is the same, it's just that the
 		// uncertainty is calculated differently.
-		Mix m = new Mix(0.21f, 0);
+		Mix m = Mix.of(0.21, 0);
 		double a = m.getA(), b = m.getB();
 		// TODO: at what temperature do the cylinder manufacturers determine
 		// tank capacity?
@@ -0,0 +1,58 @@
+package divestoclimb.lib.scuba;
+
+import java.util.Arrays;
+
+/**
+ * The decay factors exp(-kt) of a set of compartments, cached by time step.
+ *
+ * Planners keep coming back to the same few time steps: the time it takes to
+ * ascend one stop increment, whole minutes at a stop, the segment lengths of
+ * a table. Each algorithm keeps its own cache, so it never has to wait on
+ * another thread's, and a miss works the factors out into the slot's own
+ * array. Nothing is allocated after the cache is made.
+ *
+ * The cache is direct-mapped: each time step has one slot, and a new step
+ * that lands on a taken slot replaces what was there. It isn't safe to share
+ * between threads.
+ */
+final class DecayCache {
+
+	// The number of slots, a power of two
+	private static final int SLOTS = 128;
+	private static final int SLOT_SHIFT = 32 - Integer.numberOfTrailingZeros(SLOTS);
+
+	private final double[] mRates;
+	// The time step in each slot, NaN where there isn't one yet
+	private final float[] mTimes = new float[SLOTS];
+	private final double[][] mFactors;
+
+	/**
+	 * @param rates The rate constant of each compartment. The array isn't
+	 * kept, so the caller may change it afterward.
+	 */
+	DecayCache(double[] rates) {
+		mRates = rates.clone();
+		Arrays.fill(mTimes, Float.NaN);
+		mFactors = new double[SLOTS][rates.length];
+	}
+
+	/**
+	 * Get the decay factors for a time step
+	 * @param time The time step, in minutes
+	 * @return The factor exp(-kt) for each compartment. The array belongs to
+	 * the cache: it must not be changed, and it only holds these factors until
+	 * another time step takes its slot.
+	 */
+	double[] factors(float time) {
+		final int slot = Float.floatToIntBits(time) * 0x9e3779b9 >>> SLOT_SHIFT;
+		final double[] factors = mFactors[slot];
+		if(mTimes[slot] != time) {
+			final double[] rates = mRates;
+			for(int c = 0; c < rates.length; c++) {
+				factors[c] = Math.exp(-rates[c] * time);
+			}
+			mTimes[slot] = time;
+		}
+		return factors;
+	}
+}
\ No newline at end of file
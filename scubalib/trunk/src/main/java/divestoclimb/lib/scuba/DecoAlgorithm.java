@@ -2,6 +2,15 @@ package divestoclimb.lib.scuba;
 
 public interface DecoAlgorithm {
 
+	/**
+	 * Makes new DecoAlgorithm instances. A DecoAlgorithm keeps the state of
+	 * the dive it's running, so anything that runs several dives at once
+	 * needs one instance per dive.
+	 */
+	public static interface Factory {
+		public DecoAlgorithm newDecoAlgorithm();
+	}
+
 	// TODO: at least some of this data should be encapsulated in a DecoSettings class
 	// to make it easier to add to in the future without breaking legacy implementations
 	public void setDecoset(Decoset set);
@@ -18,6 +27,15 @@ public interface DecoAlgorithm {
 	 */
 	public ProfileItem[] run(ProfileItem item);
 
+	/**
+	 * Run a line of a ResolvedProfile the same way as run(ProfileItem). The
+	 * segment and depth change times are stored back in the profile.
+	 * @param profile The profile
+	 * @param line The index of the line to run
+	 * @return The mandatory stops before reaching the line's depth, if any
+	 */
+	public ProfileItem[] run(ResolvedProfile profile, int line);
+
 	/**
 	 * perform a run of the deco algorithm to ascend to the surface, checking if
 	 * decompression will be required before reaching it. The class's internal
@@ -54,8 +72,27 @@ public interface DecoAlgorithm {
 	 */
 	public GasSource getGasSource();
 
+	/**
+	 * Set a limit on how long the ascents of later runs may take to work
+	 * out. It's checked between stops, and run, surface and the rest throw
+	 * RunLimit.ExceededException once it's passed.
+	 * @param limit The limit, or null for none
+	 */
+	public void setLimit(RunLimit limit);
+
 	public byte[] getState();
+
+	/**
+	 * Load compartment state saved by getState at the end of an earlier dive.
+	 * @param state The saved state, or null to reset the algorithm to a diver
+	 * who hasn't been diving
+	 */
 	public void loadState(byte[] state);
 	
+	/**
+	 * Load configuration saved with a Dive
+	 * @param config The saved configuration, or null to keep the one the
+	 * algorithm has now
+	 */
 	public void loadConfig(byte[] config);
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package divestoclimb.lib.scuba;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of everything ProfileIterator.runDeco tracks between profile
+ * lines, taken just before a line is run. runDeco stores one with each line
+ * it runs so that after an edit it can pick up from the last line that is
+ * still valid instead of replaying the whole dive.
+ */
+public class DecoCheckpoint {
+
+	/**
+	 * What a deco run starts from besides the profile: the algorithm, its
+	 * configuration, and what the previous dive left behind. A checkpoint is
+	 * only resumed by a run with an equal Basis.
+	 * @see Dive#getDecoBasis(DecoAlgorithm)
+	 */
+	public static final class Basis {
+		private final Class<?> mAlgorithm;
+		private final byte[] mConfig, mPreviousState;
+		private final float mPreviousCns, mPreviousOtu;
+
+		Basis(Class<?> algorithm, byte[] config, byte[] previousState, float previousCns, float previousOtu) {
+			mAlgorithm = algorithm;
+			mConfig = config;
+			mPreviousState = previousState;
+			mPreviousCns = previousCns;
+			mPreviousOtu = previousOtu;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(! (o instanceof Basis)) {
+				return false;
+			}
+			final Basis b = (Basis)o;
+			return mAlgorithm == b.mAlgorithm && Arrays.equals(mConfig, b.mConfig)
+					&& Arrays.equals(mPreviousState, b.mPreviousState)
+					&& mPreviousCns == b.mPreviousCns && mPreviousOtu == b.mPreviousOtu;
+		}
+
+		@Override
+		public int hashCode() {
+			return mAlgorithm.hashCode() ^ Arrays.hashCode(mConfig) ^ Arrays.hashCode(mPreviousState);
+		}
+	}
+
+	private final Basis mBasis;
+	private final byte[] mDecoState;
+	private final float mCns, mOtu;
+	private final int mCnsDepth;
+	private final GasSource mLastGasSource;
+
+	/**
+	 * @param basis What the run that took the checkpoint started from
+	 * @param decoState The DecoAlgorithm's state, from getState
+	 * @param cnsOtu The CNS/OTU model, which is copied
+	 * @param lastGasSource The gas source the diver was breathing at the end
+	 * of the previous line, or null if this is the first line
+	 */
+	public DecoCheckpoint(Basis basis, byte[] decoState, CnsOtu cnsOtu, GasSource lastGasSource) {
+		mBasis = basis;
+		mDecoState = decoState;
+		mCns = cnsOtu.getCns();
+		mOtu = cnsOtu.getOtu();
+		mCnsDepth = cnsOtu.getDepth();
+		mLastGasSource = lastGasSource;
+	}
+
+	public Basis getBasis() { return mBasis; }
+	public byte[] getDecoState() { return mDecoState; }
+	public float getCns() { return mCns; }
+	public float getOtu() { return mOtu; }
+	public int getCnsDepth() { return mCnsDepth; }
+	public GasSource getLastGasSource() { return mLastGasSource; }
+}
\ No newline at end of file
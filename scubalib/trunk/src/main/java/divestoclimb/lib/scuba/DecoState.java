@@ -0,0 +1,186 @@
+package divestoclimb.lib.scuba;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Defines the binary format of the blobs returned by
+ * {@link DecoAlgorithm#getState()} for compartment-based algorithms, which are
+ * stored with each Dive and loaded again for the next dive in the Mission.
+ *
+ * Everything is little-endian. A state starts with a fixed 16-byte header:
+ * <pre>
+ *  0  short  magic number, "DS"
+ *  2  byte   major version. Readers reject a major version they don't know.
+ *  3  byte   minor version. Minor versions may only add fields to the end of
+ *            the header or the payload, so readers ignore it.
+ *  4  short  header length. The payload starts at this offset.
+ *  6  byte   algorithm that wrote the state (ALGORITHM_*)
+ *  7  byte   number of compartments
+ *  8  int    payload length
+ * 12  int    CRC-32 of the payload
+ * </pre>
+ * followed by the payload:
+ * <pre>
+ *  0  float    surface pressure in ATA
+ *  4  float    runtime in minutes
+ *  8  int      depth, in the units of the algorithm that wrote it
+ * 12  int      gas source being breathed, packed by packGasSource
+ * 16  double[] nitrogen loading of each compartment in ATA
+ *  .  double[] helium loading of each compartment in ATA
+ *  .  algorithm-specific data
+ * </pre>
+ * The compartment loadings are laid out so they can be read straight into an
+ * array through a DoubleBuffer view. Algorithm-specific data is only read back
+ * by the algorithm that wrote it, so a state can be passed between algorithms
+ * that share the same compartments.
+ */
+public final class DecoState {
+
+	public static final int MAJOR_VERSION = 1;
+	public static final int MINOR_VERSION = 0;
+
+	public static final int ALGORITHM_ZHL16C = 1;
+	public static final int ALGORITHM_VPMB = 2;
+
+	private static final short MAGIC = 0x5344;
+
+	public static final int HEADER_SIZE = 16;
+	private static final int HEADER_MAJOR = 2;
+	private static final int HEADER_LENGTH = 4;
+	private static final int HEADER_ALGORITHM = 6;
+	private static final int HEADER_COMPARTMENTS = 7;
+	private static final int HEADER_PAYLOAD_LENGTH = 8;
+	private static final int HEADER_CHECKSUM = 12;
+
+	public static final int SURFACE_PRESSURE = 0;
+	public static final int RUNTIME = 4;
+	public static final int DEPTH = 8;
+	public static final int GAS_SOURCE = 12;
+	public static final int LOADINGS = 16;
+
+	/**
+	 * The packed value of "no gas source"
+	 */
+	public static final int NO_GAS_SOURCE = -1;
+
+	private DecoState() { }
+
+	/**
+	 * Compute the standard CRC-32 of part of an array
+	 */
+	static int crc32(byte[] b, int offset, int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(b, offset, length);
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Find where the algorithm-specific data starts in the payload
+	 * @param compartments The number of compartments in the state
+	 * @return The offset from the start of the payload
+	 */
+	public static int extraOffset(int compartments) {
+		return LOADINGS + 16 * compartments;
+	}
+
+	/**
+	 * Create a buffer for a new state with the header filled in, except for
+	 * the checksum.
+	 * @param algorithm The ALGORITHM_* constant of the algorithm writing it
+	 * @param compartments The number of compartments
+	 * @param extraSize The size of the algorithm-specific data
+	 * @return A little-endian buffer over the payload, to be filled in and
+	 * then passed to seal
+	 */
+	public static ByteBuffer create(int algorithm, int compartments, int extraSize) {
+		final int payloadLength = extraOffset(compartments) + extraSize;
+		final ByteBuffer state = ByteBuffer.allocate(HEADER_SIZE + payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+		state.putShort(MAGIC)
+			.put((byte)MAJOR_VERSION)
+			.put((byte)MINOR_VERSION)
+			.putShort((short)HEADER_SIZE)
+			.put((byte)algorithm)
+			.put((byte)compartments)
+			.putInt(payloadLength);
+		state.position(HEADER_SIZE);
+		return state.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Write the checksum of a state built with create
+	 * @param payload The buffer returned by create
+	 * @return The finished state
+	 */
+	public static byte[] seal(ByteBuffer payload) {
+		final byte[] state = payload.array();
+		final int crc = crc32(state, HEADER_SIZE, state.length - HEADER_SIZE);
+		ByteBuffer.wrap(state).order(ByteOrder.LITTLE_ENDIAN).putInt(HEADER_CHECKSUM, crc);
+		return state;
+	}
+
+	/**
+	 * Validate a state and get at its payload
+	 * @param state The state
+	 * @param compartments The number of compartments the reader expects
+	 * @return A little-endian buffer over the payload, for absolute gets
+	 * @throws IllegalArgumentException If the state is corrupt, was written by
+	 * a newer major version, or has a different number of compartments
+	 */
+	public static ByteBuffer open(byte[] state, int compartments) {
+		if(state.length < HEADER_SIZE) {
+			throw new IllegalArgumentException("Deco state is truncated");
+		}
+		final ByteBuffer b = ByteBuffer.wrap(state).order(ByteOrder.LITTLE_ENDIAN);
+		if(b.getShort(0) != MAGIC) {
+			throw new IllegalArgumentException("Not a deco state");
+		}
+		if(b.get(HEADER_MAJOR) > MAJOR_VERSION) {
+			throw new IllegalArgumentException("Deco state version " + b.get(HEADER_MAJOR) + " is not supported");
+		}
+		if(b.get(HEADER_COMPARTMENTS) != compartments) {
+			throw new IllegalArgumentException("Deco state has " + b.get(HEADER_COMPARTMENTS) + " compartments, expected " + compartments);
+		}
+		final int headerLength = b.getShort(HEADER_LENGTH), payloadLength = b.getInt(HEADER_PAYLOAD_LENGTH);
+		if(headerLength < HEADER_SIZE || headerLength + payloadLength > state.length
+				|| payloadLength < extraOffset(compartments)) {
+			throw new IllegalArgumentException("Deco state is truncated");
+		}
+		if(crc32(state, headerLength, payloadLength) != b.getInt(HEADER_CHECKSUM)) {
+			throw new IllegalArgumentException("Deco state checksum mismatch");
+		}
+		b.position(headerLength).limit(headerLength + payloadLength);
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Get the algorithm that wrote a state, without validating it
+	 * @param state The state
+	 * @return The ALGORITHM_* constant
+	 */
+	public static int getAlgorithm(byte[] state) {
+		return state[HEADER_ALGORITHM];
+	}
+
+	/**
+	 * Pack a GasSource into an int the way GasSource.getCode does
+	 * @param source The GasSource to pack, or null
+	 * @return The packed value, or NO_GAS_SOURCE if source is null
+	 */
+	public static int packGasSource(GasSource source) {
+		return source == null? NO_GAS_SOURCE: source.getCode();
+	}
+
+	/**
+	 * Rebuild a GasSource packed by packGasSource
+	 * @param packed The packed value
+	 * @return The interned GasSource, or null if packed is NO_GAS_SOURCE
+	 */
+	public static GasSource unpackGasSource(int packed) {
+		if(packed == NO_GAS_SOURCE) {
+			return null;
+		}
+		return GasSource.forCode(packed);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+package divestoclimb.lib.scuba;
+
+/**
+ * Questions a diver asks about where they stand right now, answered from a
+ * DecoAlgorithm's current compartment state. None of these change the state.
+ *
+ * Like the rest of the algorithm, the answers assume the ascent rate and
+ * stop increment the algorithm was configured with, and the gases in its
+ * Decoset.
+ */
+public interface DecoStatus {
+
+	/**
+	 * Get the no-decompression limit at a depth: how long the diver can stay
+	 * there from now before a direct ascent to the surface would need a stop.
+	 * Each compartment's limit is found by solving its loading equation for
+	 * the time it stops tolerating surface pressure, so no ascent is
+	 * simulated. Gas exchange on the way up is counted; the way down to the
+	 * depth, if the diver isn't there yet, is not.
+	 *
+	 * The limit errs on the short side. It leaves out what an ascent does at
+	 * stops that turn out to take no time, like switching to a deco gas, and
+	 * holds models that relax their tolerances while planning an ascent, like
+	 * VPM-B, to the tolerances they start from.
+	 * @param depth The depth to stay at
+	 * @param source The gas source breathed there
+	 * @return The limit in minutes, 0 if the diver is already past it, or
+	 * Float.POSITIVE_INFINITY if there is none
+	 */
+	public float getNdl(int depth, GasSource source);
+
+	/**
+	 * Get the time it would take to reach the surface from the current depth
+	 * if the ascent started now, including stops
+	 * @return The time to surface, in minutes
+	 */
+	public float getTimeToSurface();
+
+	/**
+	 * Get the time it would take to reach the surface if the diver stayed at
+	 * the current depth on the current gas a while longer first
+	 * @param time The time to stay before ascending, in minutes
+	 * @return The time to surface after that stay, in minutes
+	 */
+	public float getTimeToSurface(float time);
+
+	/**
+	 * Get the depth the diver can't currently ascend above
+	 * @return The ceiling depth, or 0 if the diver can ascend straight to the
+	 * surface
+	 */
+	public float getCeiling();
+}
\ No newline at end of file
@@ -0,0 +1,448 @@
+package divestoclimb.lib.scuba;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates decompression tables: for each depth and bottom time in a grid,
+ * the stops, time to surface and oxygen exposure of a square profile
+ * breathing one gas on the bottom and ascending on a Decoset, plus the
+ * no-decompression limit of each depth.
+ *
+ * Each depth is a row, and rows are computed in parallel. Within a row the
+ * bottom times are run in increasing order, each one carrying on from the
+ * compartment state the last one left at the bottom, so a row costs about as
+ * much as planning its longest dive once. Rows are handed to a RowWriter in
+ * depth order as soon as they're done, and only a few are held at a time.
+ */
+public class DecoTable {
+
+	/**
+	 * The NDL reported for a depth that doesn't have one within MAX_NDL
+	 */
+	public static final int UNLIMITED_NDL = -1;
+
+	/**
+	 * The longest NDL that will be looked for, in minutes
+	 */
+	public static final int MAX_NDL = 1440;
+
+	/**
+	 * One bottom time at one depth
+	 */
+	public static class Cell {
+		private final int mBottomTime;
+		private float mTimeToSurface, mRuntime, mCns, mOtu;
+		private ProfileItem[] mStops;
+		private Exception mError;
+
+		Cell(int bottomTime) {
+			mBottomTime = bottomTime;
+		}
+
+		/**
+		 * @return The bottom time, which is the runtime on leaving the bottom
+		 * and includes the descent
+		 */
+		public int getBottomTime() { return mBottomTime; }
+		public float getTimeToSurface() { return mTimeToSurface; }
+		public float getRuntime() { return mRuntime; }
+		public float getCns() { return mCns; }
+		public float getOtu() { return mOtu; }
+		public ProfileItem[] getStops() { return mStops; }
+
+		/**
+		 * @return The exception that kept this dive from being planned, or
+		 * null if it was
+		 */
+		public Exception getError() { return mError; }
+		public boolean isPlanned() { return mError == null; }
+	}
+
+	/**
+	 * All bottom times at one depth
+	 */
+	public static class Row {
+		private final int mDepth;
+		private int mNdl;
+		private final Cell[] mCells;
+
+		Row(int depth, int cells) {
+			mDepth = depth;
+			mCells = new Cell[cells];
+		}
+
+		public int getDepth() { return mDepth; }
+
+		/**
+		 * @return The longest bottom time that can be ascended from without
+		 * stops, or UNLIMITED_NDL
+		 */
+		public int getNdl() { return mNdl; }
+		public Cell[] getCells() { return mCells; }
+	}
+
+	/**
+	 * Receives the rows of a table as they're generated
+	 */
+	public static interface RowWriter {
+		/**
+		 * Called once for each row, in the order the depths were given
+		 */
+		public void writeRow(Row row) throws IOException;
+
+		/**
+		 * Called after the last row
+		 */
+		public void finish() throws IOException;
+	}
+
+	private final Units mUnits;
+	private final DecoAlgorithm.Factory mFactory;
+	private final Decoset mDecoset;
+	private final GasSource mGasSource;
+	private final int mAltitude;
+	private int mAcclimatizationTime = 0;
+
+	/**
+	 * @param units The unit system of the depths and of the DecoAlgorithms
+	 * factory makes
+	 * @param factory Makes the DecoAlgorithms to plan with, one per row
+	 * @param decoset The gases to ascend on
+	 * @param gasSource The gas to breathe on the bottom
+	 * @param altitude The altitude of the dive site
+	 */
+	public DecoTable(Units units, DecoAlgorithm.Factory factory, Decoset decoset, GasSource gasSource, int altitude) {
+		mUnits = units;
+		mFactory = factory;
+		mDecoset = decoset;
+		mGasSource = gasSource;
+		mAltitude = altitude;
+	}
+
+	public int getAcclimatizationTime() { return mAcclimatizationTime; }
+
+	/**
+	 * Set how long the diver has been at the altitude of the dive site before
+	 * diving. The default is 0, which is the most conservative.
+	 * @param time The time in minutes
+	 */
+	public DecoTable setAcclimatizationTime(int time) { mAcclimatizationTime = time; return this; }
+
+	/**
+	 * Generate a table on a thread pool with one thread per processor
+	 * @see #write(int[], int[], RowWriter, ExecutorService)
+	 */
+	public void write(int[] depths, int[] bottomTimes, RowWriter out) throws IOException, InterruptedException {
+		final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			write(depths, bottomTimes, out, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Generate a table
+	 * @param depths The depth of each row
+	 * @param bottomTimes The bottom times to tabulate at each depth, in
+	 * increasing order
+	 * @param out Where to write the rows
+	 * @param executor The ExecutorService to compute rows on. Rows are
+	 * submitted a few at a time ahead of the one being written, so memory use
+	 * doesn't grow with the number of rows.
+	 * @throws IOException If out throws it
+	 * @throws InterruptedException If the thread was interrupted while
+	 * waiting for a row
+	 */
+	public void write(int[] depths, final int[] bottomTimes, RowWriter out, ExecutorService executor) throws IOException, InterruptedException {
+		final int window = Runtime.getRuntime().availableProcessors() * 2;
+		final LinkedList<Future<Row>> pending = new LinkedList<Future<Row>>();
+		int next = 0;
+		while(next < depths.length || ! pending.isEmpty()) {
+			while(next < depths.length && pending.size() < window) {
+				final int depth = depths[next++];
+				pending.add(executor.submit(new Callable<Row>() {
+					public Row call() {
+						return computeRow(depth, bottomTimes);
+					}
+				}));
+			}
+			try {
+				out.writeRow(pending.removeFirst().get());
+			} catch(ExecutionException e) {
+				// computeRow catches the exceptions planning can throw, so
+				// this is a bug
+				for(Future<Row> f: pending) {
+					f.cancel(true);
+				}
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		out.finish();
+	}
+
+	/**
+	 * Set up a DecoAlgorithm for a new dive
+	 */
+	private DecoAlgorithm newDive() {
+		final DecoAlgorithm deco = mFactory.newDecoAlgorithm();
+		deco.loadState(null);
+		deco.setDecoset(mDecoset);
+		deco.surfaceInterval(mAltitude, mAcclimatizationTime, Mix.of(0.21, 0));
+		return deco;
+	}
+
+	private ProfileItem bottom(int depth, int time) {
+		return new ProfileItem()
+				.setDepth(depth)
+				.setTime(time)
+				.setTimeType(ProfileItem.TIME_TYPE_RUN)
+				.setGasSource(mGasSource);
+	}
+
+	/**
+	 * Compute one row of the table
+	 * @param depth The depth of the row
+	 * @param bottomTimes The bottom times to tabulate, in increasing order
+	 * @return The row
+	 */
+	Row computeRow(int depth, int[] bottomTimes) {
+		final Row row = new Row(depth, bottomTimes.length);
+		final DecoAlgorithm deco = newDive();
+		final byte[] surface = deco.getState();
+		row.mNdl = findNdl(deco, surface, depth);
+		deco.loadState(surface);
+
+		// The oxygen exposure on the bottom carries on from cell to cell just
+		// like the compartments do
+		CnsOtu bottomCnsOtu = new CnsOtu(mAltitude, mUnits, 0, 0);
+		GasSource lastGasSource = mGasSource;
+		Exception bottomError = null;
+		for(int c = 0; c < bottomTimes.length; c++) {
+			final Cell cell = row.mCells[c] = new Cell(bottomTimes[c]);
+			if(bottomError != null) {
+				// Everything longer fails the same way
+				cell.mError = bottomError;
+				continue;
+			}
+			final float lastRuntime = deco.getRuntime();
+			final ProfileItem item = bottom(depth, bottomTimes[c]);
+			try {
+				deco.run(item);
+				bottomCnsOtu.changeDepth(depth, item.getDepthChangeTime(), lastGasSource);
+				bottomCnsOtu.run(deco.getRuntime() - lastRuntime - item.getDepthChangeTime(), mGasSource);
+			} catch(Exception e) {
+				cell.mError = bottomError = e;
+				continue;
+			}
+			lastGasSource = mGasSource;
+
+			final byte[] bottomState = deco.getState();
+			final float bottomRuntime = deco.getRuntime();
+			final CnsOtu cnsOtu = new CnsOtu(mAltitude, mUnits, bottomCnsOtu.getCns(), bottomCnsOtu.getOtu(), bottomCnsOtu.getDepth());
+			try {
+				final ProfileItem[] stops = deco.surface();
+				float runtime = bottomRuntime;
+				final GasSource last = ProfileIterator.runCnsOtu(cnsOtu, stops, mGasSource);
+				for(int s = 0; s < stops.length; s++) {
+					runtime += stops[s].getDepthChangeTime() + stops[s].getSegtime();
+				}
+				cnsOtu.changeDepth(0, deco.getRuntime() - runtime, last);
+				cell.mStops = stops;
+				cell.mRuntime = deco.getRuntime();
+				cell.mTimeToSurface = deco.getRuntime() - bottomRuntime;
+				cell.mCns = cnsOtu.getCns();
+				cell.mOtu = cnsOtu.getOtu();
+			} catch(Exception e) {
+				cell.mError = e;
+			}
+			// Go back to the bottom for the next bottom time
+			deco.loadState(bottomState);
+		}
+		return row;
+	}
+
+	/**
+	 * Find the no-decompression limit at a depth by bisecting on the bottom
+	 * time. Algorithms that implement DecoStatus give an estimate that errs
+	 * on the short side, so the search starts there and works up.
+	 * @param deco The DecoAlgorithm to use
+	 * @param surface The state to start each trial dive from
+	 * @param depth The depth
+	 * @return The NDL in whole minutes, or UNLIMITED_NDL
+	 */
+	private int findNdl(DecoAlgorithm deco, byte[] surface, int depth) {
+		// The NDL is at least low and less than high
+		int low = 0, high = MAX_NDL;
+		if(deco instanceof DecoStatus) {
+			final int estimate = estimateNdl(deco, surface, depth);
+			if(estimate < MAX_NDL) {
+				if(isNoDeco(deco, surface, depth, estimate)) {
+					low = estimate;
+					for(int step = 1; ; step *= 2) {
+						high = Math.min(low + step, MAX_NDL);
+						if(high == MAX_NDL || ! isNoDeco(deco, surface, depth, high)) {
+							break;
+						}
+						low = high;
+					}
+				} else {
+					high = estimate;
+				}
+			}
+		}
+		if(high == MAX_NDL && isNoDeco(deco, surface, depth, MAX_NDL)) {
+			return UNLIMITED_NDL;
+		}
+		while(high - low > 1) {
+			final int mid = (low + high) >>> 1;
+			if(isNoDeco(deco, surface, depth, mid)) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Ask a DecoStatus for the NDL at the end of the descent
+	 * @return The estimate in whole minutes of bottom time, at most MAX_NDL
+	 */
+	private int estimateNdl(DecoAlgorithm deco, byte[] surface, int depth) {
+		deco.loadState(surface);
+		try {
+			deco.run(bottom(depth, 0));
+		} catch(IllegalStateException e) {
+			return 0;
+		}
+		final float ndl = deco.getRuntime() + ((DecoStatus)deco).getNdl(depth, mGasSource);
+		return ndl < MAX_NDL? (int)Math.floor(ndl): MAX_NDL;
+	}
+
+	private boolean isNoDeco(DecoAlgorithm deco, byte[] surface, int depth, int bottomTime) {
+		deco.loadState(surface);
+		try {
+			deco.run(bottom(depth, bottomTime));
+			return deco.surface().length == 0;
+		} catch(IllegalStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Describe a gas source briefly, like 50/0 or 1.3/21/35
+	 */
+	static String describe(GasSource source) {
+		if(source instanceof Setpoint) {
+			final Setpoint setpoint = (Setpoint)source;
+			return format(setpoint.getPo2(), 2) + "/" + describe(setpoint.getDiluent());
+		}
+		final Mix mix = (Mix)source;
+		return Math.round(mix.getO2()) + "/" + Math.round(mix.getHe());
+	}
+
+	static String format(float value, int decimals) {
+		return String.format(Locale.US, "%." + decimals + "f", value);
+	}
+
+	/**
+	 * Writes a table as CSV, one line per cell, with a header line. The stops
+	 * column lists each stop as depth:minutes, separated by spaces.
+	 */
+	public static class CsvRowWriter implements RowWriter {
+		private final Writer mOut;
+		private boolean mHeaderWritten = false;
+
+		public CsvRowWriter(Writer out) {
+			mOut = out;
+		}
+
+		public void writeRow(Row row) throws IOException {
+			if(! mHeaderWritten) {
+				mOut.write("depth,bottom_time,ndl,tts,runtime,cns,otu,stops\n");
+				mHeaderWritten = true;
+			}
+			for(Cell cell: row.getCells()) {
+				mOut.write(row.getDepth() + "," + cell.getBottomTime() + "," + row.getNdl() + ",");
+				if(! cell.isPlanned()) {
+					mOut.write(",,,,\n");
+					continue;
+				}
+				mOut.write(format(cell.getTimeToSurface(), 1) + "," + format(cell.getRuntime(), 1) + ","
+						+ format(cell.getCns(), 1) + "," + format(cell.getOtu(), 1) + ",");
+				final ProfileItem[] stops = cell.getStops();
+				for(int s = 0; s < stops.length; s++) {
+					if(s > 0) {
+						mOut.write(' ');
+					}
+					mOut.write(stops[s].getDepth() + ":" + stops[s].getTime());
+				}
+				mOut.write('\n');
+			}
+		}
+
+		public void finish() throws IOException {
+			mOut.flush();
+		}
+	}
+
+	/**
+	 * Writes a table as a JSON array with one object per row. Cells that
+	 * couldn't be planned have an "error" member instead of results.
+	 */
+	public static class JsonRowWriter implements RowWriter {
+		private final Writer mOut;
+		private boolean mFirst = true;
+
+		public JsonRowWriter(Writer out) {
+			mOut = out;
+		}
+
+		public void writeRow(Row row) throws IOException {
+			mOut.write(mFirst? "[\n": ",\n");
+			mFirst = false;
+			mOut.write("{\"depth\":" + row.getDepth() + ",\"ndl\":" + row.getNdl() + ",\"cells\":[");
+			final Cell[] cells = row.getCells();
+			for(int c = 0; c < cells.length; c++) {
+				final Cell cell = cells[c];
+				if(c > 0) {
+					mOut.write(',');
+				}
+				mOut.write("{\"bottom_time\":" + cell.getBottomTime());
+				if(! cell.isPlanned()) {
+					mOut.write(",\"error\":\"" + cell.getError().getClass().getSimpleName() + "\"}");
+					continue;
+				}
+				mOut.write(",\"tts\":" + format(cell.getTimeToSurface(), 1)
+						+ ",\"runtime\":" + format(cell.getRuntime(), 1)
+						+ ",\"cns\":" + format(cell.getCns(), 1)
+						+ ",\"otu\":" + format(cell.getOtu(), 1)
+						+ ",\"stops\":[");
+				final ProfileItem[] stops = cell.getStops();
+				for(int s = 0; s < stops.length; s++) {
+					if(s > 0) {
+						mOut.write(',');
+					}
+					mOut.write("{\"depth\":" + stops[s].getDepth() + ",\"time\":" + stops[s].getTime()
+							+ ",\"gas\":\"" + describe(stops[s].getGasSource()) + "\"}");
+				}
+				mOut.write("]}");
+			}
+			mOut.write("]}");
+		}
+
+		public void finish() throws IOException {
+			mOut.write(mFirst? "[]\n": "\n]\n");
+			mOut.flush();
+		}
+	}
+}
\ No newline at end of file
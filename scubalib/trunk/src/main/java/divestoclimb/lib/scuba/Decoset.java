@@ -124,6 +124,23 @@ public class Decoset {
 		mItems.clear();
 	} */
 
+	/**
+	 * Build a copy of this Decoset with every switch to a given gas removed,
+	 * as if the diver had lost it. The copy shares this Decoset's Items.
+	 * @param source The GasSource to leave out
+	 * @return The copy
+	 */
+	public Decoset without(GasSource source) {
+		final Decoset copy = new Decoset(mName);
+		copy.id = id;
+		for(Item i: mItems) {
+			if(i.getGasSource() != source) {
+				copy.mItems.add(i);
+			}
+		}
+		return copy;
+	}
+
 	/**
 	 * Determine which gas to use at any depth according to this Decoset.
 	 * @param depth The depth to get the desired gas source for
@@ -137,7 +154,9 @@ public class Decoset {
 		GasSource last_gas = null;
 		while(it.hasNext()) {
 			final Item i = it.next();
-			if(i.getMaxDepth() > depth) {
+			if(i.getMaxDepth() < depth) {
+				// Items are ordered deepest first, so everything from here
+				// on is too shallow to use
 				break;
 			} else {
 				last_gas = i.getGasSource();
@@ -3,7 +3,7 @@ package divestoclimb.lib.scuba;
 import java.util.List;
 
 // TODO add Type support
-public class Dive {
+public class Dive implements Cloneable {
 
 	private Long id;
 	protected String mName;
@@ -23,6 +23,11 @@ public class Dive {
 	protected byte[] mDecoConfig;
 	protected byte[] mFinalDecoState;
 	protected float mFinalCnsState, mFinalOtuState;
+	protected float mRuntime, mTimeToSurface;
+	protected DecoCheckpoint mBottomCheckpoint;
+	// The position of the first profile line that may have been affected by
+	// a change since the last deco run. Every line before it is up to date.
+	protected int mValidUpTo = 0;
 	//protected PreviousDiveFetcher mPreviousDiveFetcher;
 	
 	protected Units mUnits;
@@ -35,6 +40,27 @@ public class Dive {
 		mDecosetID = decoset_id;
 	}
 	
+	/**
+	 * Copy this dive. The profile is copied too, so its items can be edited
+	 * and run without affecting this dive. Everything else is shared.
+	 */
+	public Dive clone() {
+		final Dive copy;
+		try {
+			copy = (Dive)super.clone();
+		} catch (CloneNotSupportedException e) {
+			// Impossible since we implemented Cloneable
+			return null;
+		}
+		if(mProfile != null) {
+			copy.mProfile = new ProfileList(mProfile.size());
+			for(ProfileItem i: mProfile) {
+				copy.mProfile.add(i.clone());
+			}
+		}
+		return copy;
+	}
+
 	public void setId(long id) {
 		this.id = id;
 	}
@@ -42,19 +68,29 @@ public class Dive {
 	public Long getId() {
 		return id;
 	}
+	public Units getUnits() { return mUnits; }
 	public String getName() { return mName; }
 	public Dive setName(String name) { mName = name; return this; }
 	public long getMissionID() { return mMissionID; }
+	public int getOrder() { return mMissionOrder; }
 	//public Dive setMissionFetcher(Record.Fetcher<Mission> f) { mMissionFetcher = f; return this; }
 	public long getDecosetID() { return mDecosetID; }
 	//public Dive setDecosetFetcher(Record.Fetcher<Decoset> f) { mDecosetFetcher = f; return this; }
 	//public Dive setProfileFetcher(ProfileFetcher f) { mProfileFetcher = f; return this; }
 	public int getAltitude() { return mAltitude; }
-	public Dive setAltitude(int altitude) { mAltitude = altitude; return this; }
+	public Dive setAltitude(int altitude) { mAltitude = altitude; clearCheckpoints(); return this; }
 	public int getAcclimatizationTime() { return mAcclimatizationTime; }
-	public Dive setAcclimatizationTime(int acclimatizationTime) { mAcclimatizationTime = acclimatizationTime; return this; }
+	public Dive setAcclimatizationTime(int acclimatizationTime) { mAcclimatizationTime = acclimatizationTime; clearCheckpoints(); return this; }
 	public int getSurfaceInterval() { return mSurfaceInterval; }
-	public Dive setSurfaceInterval(int surfaceInterval) { mSurfaceInterval = surfaceInterval; return this; }
+	public Dive setSurfaceInterval(int surfaceInterval) { mSurfaceInterval = surfaceInterval; clearCheckpoints(); return this; }
+
+	/**
+	 * @return The deco algorithm configuration this dive is planned with, as
+	 * from AbsDecoAlgorithm.getConfig, or null to plan with however the
+	 * algorithm passed in is configured
+	 */
+	public byte[] getDecoConfig() { return mDecoConfig; }
+	public Dive setDecoConfig(byte[] config) { mDecoConfig = config; clearCheckpoints(); return this; }
 
 	public Mission getMission() {
 		/*if(mMissionFetcher == null) {
@@ -73,9 +109,10 @@ public class Dive {
 		return mDecoset;
 	}
 	public Dive setDecoset(Decoset decoset) {
-		if(decoset.getId() != mDecosetID) {
+		if(decoset != mDecoset) {
 			mDecoset = decoset;
 			mDecosetID = decoset.getId();
+			clearCheckpoints();
 		}
 		return this;
 	}
@@ -86,6 +123,63 @@ public class Dive {
 		}*/
 		return mProfile;
 	}
+	/**
+	 * Set the profile of this dive. The items are kept, but the list is
+	 * copied into a ProfileList unless it already is one, so later changes
+	 * must be made to the list getProfile returns.
+	 * @param profile The profile, or null
+	 * @return This dive
+	 */
+	public Dive setProfile(List<ProfileItem> profile) {
+		mProfile = profile == null? null: ProfileList.of(profile);
+		return this;
+	}
+
+	/**
+	 * @return The position of the first profile line that may be out of date
+	 */
+	public int getValidUpTo() { return mValidUpTo; }
+	public Dive setValidUpTo(int validUpTo) { mValidUpTo = validUpTo; return this; }
+
+	/**
+	 * Mark the profile lines from a position on as out of date. Nothing is
+	 * done to the lines themselves, so this takes the same time however long
+	 * the profile is.
+	 * @param position The position of the first line that changed
+	 */
+	public void invalidateFrom(int position) {
+		if(position < mValidUpTo) {
+			mValidUpTo = Math.max(position, 0);
+		}
+	}
+
+	/**
+	 * Decide whether a profile line is up to date
+	 * @param position The position of the line
+	 * @return true if the line comes before the first change since the last
+	 * deco run, or doesn't depend on the rest of the profile
+	 */
+	public boolean isValid(int position) {
+		return position < mValidUpTo || mProfile.get(position).getValid() == ProfileItem.ALWAYS_VALID;
+	}
+
+	public Dive getPreviousDive() { return mPreviousDive; }
+	public Dive setPreviousDive(Dive previous) { mPreviousDive = previous; clearCheckpoints(); return this; }
+
+	/**
+	 * Discard the deco checkpoints stored in the profile. This must be done
+	 * whenever something outside the profile changes that the deco
+	 * calculation depends on, so the next incremental run starts over from
+	 * the beginning.
+	 */
+	public void clearCheckpoints() {
+		if(mProfile == null) {
+			return;
+		}
+		for(ProfileItem i: mProfile) {
+			i.setCheckpoint(null);
+		}
+	}
 
 	//public Dive setPreviousDiveFetcher(PreviousDiveFetcher f) { mPreviousDiveFetcher = f; return this; }
 	
@@ -101,12 +195,53 @@ public class Dive {
 		}*/
 		float cns = 0, otu = 0;
 		if(mPreviousDive != null) {
-			cns = mPreviousDive.mFinalCnsState;
+			// CNS loading wears off over the surface interval, but OTU's
+			// are counted over whole days
+			cns = CnsOtu.decayCns(mPreviousDive.mFinalCnsState, mSurfaceInterval);
 			otu = mPreviousDive.mFinalOtuState;
 		}
 		return new CnsOtu(mAltitude, mUnits, cns, otu);
 	}
+
+	/**
+	 * Construct the CnsOtu state object as of a checkpoint in this dive
+	 * @param checkpoint The checkpoint to resume from
+	 * @return The initialized CnsOtu object
+	 */
+	public CnsOtu buildCnsOtu(DecoCheckpoint checkpoint) {
+		return new CnsOtu(mAltitude, mUnits, checkpoint.getCns(), checkpoint.getOtu(), checkpoint.getCnsDepth());
+	}
 	
+	public float getFinalCns() { return mFinalCnsState; }
+	public float getFinalOtu() { return mFinalOtuState; }
+
+	/**
+	 * @return The runtime of the dive on surfacing, as of the last deco run
+	 */
+	public float getRuntime() { return mRuntime; }
+
+	/**
+	 * @return The time it took to surface from the end of the last profile
+	 * line, as of the last deco run
+	 */
+	public float getTimeToSurface() { return mTimeToSurface; }
+
+	public void saveRuntime(float runtime, float timeToSurface) {
+		mRuntime = runtime;
+		mTimeToSurface = timeToSurface;
+	}
+
+	/**
+	 * @return The state of the deco calculation at the end of the last
+	 * profile line, before the final ascent, as of the last deco run. null if
+	 * the dive hasn't been run.
+	 */
+	public DecoCheckpoint getBottomCheckpoint() { return mBottomCheckpoint; }
+
+	public void saveBottom(DecoCheckpoint checkpoint) {
+		mBottomCheckpoint = checkpoint;
+	}
+
 	public void saveCnsOtu(CnsOtu state) {
 		float cns = state.getCns();
 		mFinalCnsState = cns;
@@ -120,12 +255,12 @@ public class Dive {
 			mPreviousDive = mPreviousDiveFetcher.fetchPreviousDive(this);
 		}*/
 		Dive previous = mPreviousDive;
-		if(previous != null) {
-			alg.loadState(previous.mFinalDecoState);
-		}
+		// With no previous dive, passing null starts the algorithm from a
+		// clean state rather than whatever it was left with by its last run.
+		alg.loadState(previous != null? previous.mFinalDecoState: null);
 		alg.setDecoset(getDecoset());
 
-		Mix air = new Mix(0.21f, 0);
+		Mix air = Mix.of(0.21, 0);
 		if(mSurfaceInterval > mAcclimatizationTime && previous != null) {
 			// The diver ascended from the last dive before
 			// changing altitude. Account for that time first.
@@ -134,6 +269,36 @@ public class Dive {
 		alg.surfaceInterval(mAltitude, mAcclimatizationTime, air);
 	}
 	
+	/**
+	 * Work out what a deco run of this dive with an algorithm starts from,
+	 * to tell whether a checkpoint can be resumed
+	 * @param alg The DecoAlgorithm, configured the way the run will leave it
+	 * if this dive has no configuration of its own
+	 */
+	public DecoCheckpoint.Basis getDecoBasis(DecoAlgorithm alg) {
+		byte[] config = mDecoConfig;
+		if(config == null && alg instanceof AbsDecoAlgorithm) {
+			config = ((AbsDecoAlgorithm)alg).getConfig();
+		}
+		final Dive previous = mPreviousDive;
+		return previous == null? new DecoCheckpoint.Basis(alg.getClass(), config, null, 0, 0):
+			new DecoCheckpoint.Basis(alg.getClass(), config, previous.mFinalDecoState,
+					previous.mFinalCnsState, previous.mFinalOtuState);
+	}
+
+	/**
+	 * Set up a DecoAlgorithm to carry on from a checkpoint in this dive
+	 * @param alg The DecoAlgorithm
+	 * @param checkpoint The checkpoint to resume from
+	 */
+	public void resumeDeco(DecoAlgorithm alg, DecoCheckpoint checkpoint) {
+		alg.loadConfig(mDecoConfig);
+		alg.loadState(checkpoint.getDecoState());
+		alg.setDecoset(getDecoset());
+	}
+
+	public byte[] getFinalDecoState() { return mFinalDecoState; }
+
 	public void saveDeco(DecoAlgorithm alg) {
 		byte[] finalDecoState = alg.getState();
 		mFinalDecoState = finalDecoState;
@@ -6,6 +6,86 @@ package divestoclimb.lib.scuba;
  */
 public abstract class GasSource {
 
+	// The packed code of an interned gas and its place among the interned
+	// gases, or -1 for a gas that can be changed
+	private final int mCode, mIndex;
+
+	public GasSource() {
+		this(-1, -1);
+	}
+
+	GasSource(int code, int index) {
+		mCode = code;
+		mIndex = index;
+	}
+
+	/**
+	 * Get the one shared GasSource for a mixture. Interned gases can't be
+	 * changed, so they can be handed around freely and compared by identity,
+	 * and the values derived from them are worked out once.
+	 * @param source The mixture. Fractions are rounded to thousandths and
+	 * setpoints to hundredths of an ATA.
+	 * @return The interned gas, which is source itself if it's interned
+	 */
+	public static GasSource intern(GasSource source) {
+		return source.isInterned()? source: GasTable.get(GasTable.pack(source));
+	}
+
+	/**
+	 * Get the interned gas for a code from getCode
+	 * @throws IllegalArgumentException If the code isn't valid
+	 */
+	public static GasSource forCode(int code) {
+		return GasTable.get(code);
+	}
+
+	/**
+	 * Get an interned gas by its index
+	 * @param index The index, from 0 up to getInternedCount
+	 */
+	public static GasSource forIndex(int index) {
+		return GasTable.byIndex(index);
+	}
+
+	/**
+	 * @return The number of gases interned so far
+	 */
+	public static int getInternedCount() {
+		return GasTable.size();
+	}
+
+	public boolean isInterned() {
+		return mIndex >= 0;
+	}
+
+	/**
+	 * Pack this gas into an int. Bits 0-9 hold the fraction of oxygen in the
+	 * mix or diluent in thousandths, bits 10-19 the fraction of helium, and
+	 * bits 20-30 the setpoint in hundredths of an ATA (0 for open circuit).
+	 * @return The code. Gases with the same code intern to the same gas.
+	 */
+	public int getCode() {
+		return isInterned()? mCode: GasTable.pack(this);
+	}
+
+	/**
+	 * @return The index of an interned gas, counting the gases in the order
+	 * they were interned from 0, or -1 if this gas isn't interned. Tables of
+	 * per-gas values can be arrays indexed by this.
+	 */
+	public int getIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * @throws UnsupportedOperationException if this gas is interned
+	 */
+	protected void checkMutable() {
+		if(isInterned()) {
+			throw new UnsupportedOperationException("Interned gases can't be changed");
+		}
+	}
+
 	public static float pressureAtAltitude(int altitude, Units units) {
 		// Valid for nonzero temperature lapse rate, but only works in
 		// the troposphere.
@@ -153,7 +153,7 @@ public class GasSupply implements Cloneable {
 	 * @return The modified GasSupply object
 	 */
 	public GasSupply addO2(double amt) {
-		return addGas(new Mix(1, 0), amt);
+		return addGas(Mix.of(1, 0), amt);
 	}
 
 	/**
@@ -163,7 +163,7 @@ public class GasSupply implements Cloneable {
 	 * @return The modified GasSupply object
 	 */
 	public GasSupply addHe(double amt) {
-		return addGas(new Mix(0, 1), amt);
+		return addGas(Mix.of(0, 1), amt);
 	}
 
 	/**
@@ -0,0 +1,155 @@
+package divestoclimb.lib.scuba;
+
+import java.util.Arrays;
+
+/**
+ * The interned gases, keyed by their packed codes.
+ *
+ * A code holds the fraction of oxygen in the mix or diluent in thousandths in
+ * bits 0-9, the fraction of helium in bits 10-19, and the setpoint in
+ * hundredths of an ATA in bits 20-30, 0 for open circuit. A setpoint without a
+ * diluent packs the same as one on pure nitrogen.
+ *
+ * Each code is interned once and kept for good. There are only so many gases
+ * a diver uses, so the table stays small.
+ */
+final class GasTable {
+
+	private static final int FRACTION_MAX = 1000, SETPOINT_MAX = 0x7ff;
+
+	/**
+	 * A snapshot of the table. It never changes once it's published, so it
+	 * can be read without locking; interning a gas publishes a new one.
+	 */
+	private static final class Table {
+		// An open-addressed hash table of codes, -1 where empty, and their
+		// gases
+		final int[] mCodes;
+		final GasSource[] mSlots;
+		// The gases in the order they were interned
+		final GasSource[] mByIndex;
+
+		Table(int[] codes, GasSource[] slots, GasSource[] byIndex) {
+			mCodes = codes;
+			mSlots = slots;
+			mByIndex = byIndex;
+		}
+
+		/**
+		 * Find the slot a code is in, or the empty slot it would go in
+		 */
+		int find(int code) {
+			final int mask = mCodes.length - 1;
+			int slot = code * 0x9e3779b9 >>> 16 & mask;
+			while(mCodes[slot] != -1 && mCodes[slot] != code) {
+				slot = slot + 1 & mask;
+			}
+			return slot;
+		}
+
+		/**
+		 * Make a copy of this table with another gas in it
+		 */
+		Table with(int code, GasSource gas) {
+			final int count = mByIndex.length + 1;
+			// Keep the hash table at most half full
+			final int length = count * 2 > mCodes.length? mCodes.length * 2: mCodes.length;
+			final int[] codes = new int[length];
+			Arrays.fill(codes, -1);
+			final Table table = new Table(codes, new GasSource[length], Arrays.copyOf(mByIndex, count));
+			table.mByIndex[count - 1] = gas;
+			for(int i = 0; i < count; i++) {
+				final GasSource g = table.mByIndex[i];
+				final int slot = table.find(g.getCode());
+				codes[slot] = g.getCode();
+				table.mSlots[slot] = g;
+			}
+			return table;
+		}
+	}
+
+	private static volatile Table mTable = new Table(emptyCodes(64), new GasSource[64], new GasSource[0]);
+
+	private static int[] emptyCodes(int length) {
+		final int[] codes = new int[length];
+		Arrays.fill(codes, -1);
+		return codes;
+	}
+
+	/**
+	 * Pack a mixture into a code
+	 * @param o2 The fraction of oxygen in the mix or diluent
+	 * @param he The fraction of helium in the mix or diluent
+	 * @param setpoint The setpoint in ATA, or 0 for open circuit
+	 * @throws IllegalArgumentException If a value is out of range
+	 */
+	static int pack(double o2, double he, float setpoint) {
+		final long o2Part = Math.round(o2 * 1000), setpointPart = Math.round(setpoint * 100);
+		long hePart = Math.round(he * 1000);
+		if(o2Part < 0 || hePart < 0 || o2Part + hePart > FRACTION_MAX + 1
+				|| setpointPart < 0 || setpointPart > SETPOINT_MAX) {
+			throw new IllegalArgumentException("Can't pack O2 " + o2 + ", He " + he + ", setpoint " + setpoint);
+		}
+		// Fractions that add up to 1 can round to a thousandth over it
+		hePart = Math.min(hePart, FRACTION_MAX - o2Part);
+		return (int)(o2Part | hePart << 10 | setpointPart << 20);
+	}
+
+	static int pack(GasSource source) {
+		if(source instanceof Setpoint) {
+			final Setpoint setpoint = (Setpoint)source;
+			final Mix diluent = setpoint.getDiluent();
+			return diluent == null? pack(0, 0, setpoint.getPo2()):
+				pack(diluent.getfO2(), diluent.getfHe(), setpoint.getPo2());
+		}
+		final Mix mix = (Mix)source;
+		return pack(mix.getfO2(), mix.getfHe(), 0);
+	}
+
+	/**
+	 * Get the interned gas for a code, interning it if this is the first
+	 * time it's been asked for. Only interning takes a lock.
+	 */
+	static GasSource get(int code) {
+		final Table table = mTable;
+		final GasSource gas = table.mSlots[table.find(code)];
+		return gas != null? gas: intern(code);
+	}
+
+	private static synchronized GasSource intern(int code) {
+		// Another thread may have interned it since we looked
+		Table table = mTable;
+		final GasSource found = table.mSlots[table.find(code)];
+		if(found != null) {
+			return found;
+		}
+		if((code & 0x3ff) + (code >>> 10 & 0x3ff) > FRACTION_MAX || code >>> 31 != 0) {
+			throw new IllegalArgumentException("Invalid gas code " + code);
+		}
+		final double o2 = (code & 0x3ff) / 1000.0, he = (code >>> 10 & 0x3ff) / 1000.0;
+		final int setpoint = code >>> 20 & SETPOINT_MAX;
+		final GasSource gas;
+		if(setpoint == 0) {
+			gas = new Mix(o2, he, code, table.mByIndex.length);
+		} else {
+			// Intern the diluent first. It changes the table.
+			final Mix diluent = (Mix)get(code & 0xfffff);
+			table = mTable;
+			gas = new Setpoint(setpoint / 100f, diluent, code, table.mByIndex.length);
+		}
+		mTable = table.with(code, gas);
+		return gas;
+	}
+
+	static GasSource byIndex(int index) {
+		final GasSource[] byIndex = mTable.mByIndex;
+		if(index < 0 || index >= byIndex.length) {
+			throw new IndexOutOfBoundsException("Gas index: " + index);
+		}
+		return byIndex[index];
+	}
+
+	static int size() {
+		return mTable.mByIndex.length;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,101 @@
+package divestoclimb.lib.scuba;
+
+/**
+ * Follows a dive as it happens, from samples a dive computer reads one at a
+ * time. Each sample loads the compartments and adds to the CNS and OTU counts
+ * for the time since the last one, taking the depth as changing steadily in
+ * between, and nothing is allocated along the way.
+ *
+ * The ceiling, no-decompression limit and time to surface are worked out when
+ * they're asked for and kept until the next sample, so a display that reads
+ * them once a sample pays for each once.
+ */
+public class LiveTracker {
+
+	private final AbsDecoAlgorithm mDeco;
+	private final CnsOtu mCnsOtu;
+
+	// The time of the last sample in seconds, or negative before the first
+	private float mTime = -1;
+	private float mDepth = 0;
+	private GasSource mGas;
+
+	// What's been worked out since the last sample, or NaN if nothing has
+	private float mCeiling = Float.NaN, mNdl = Float.NaN, mTts = Float.NaN;
+
+	/**
+	 * @param deco The algorithm to track with, already initialized for the
+	 * diver's state before the dive as Dive.initializeDeco does
+	 * @param cnsOtu The oxygen exposure before the dive, as from
+	 * Dive.buildCnsOtu
+	 * @param gas The gas breathed from the start, or null if the first sample
+	 * will say
+	 */
+	public LiveTracker(AbsDecoAlgorithm deco, CnsOtu cnsOtu, GasSource gas) {
+		mDeco = deco;
+		mCnsOtu = cnsOtu;
+		mGas = gas;
+	}
+
+	/**
+	 * Read the next sample. Samples have to come in time order.
+	 * @param time The time of the sample, in seconds from the start of the
+	 * dive
+	 * @param depth The depth, in the units of the algorithm
+	 * @param gas The gas breathed since the last sample, or null if it hasn't
+	 * changed
+	 * @throws CnsOtu.MaxPo2ExceededException If the pO2 since the last sample
+	 * was too high to say what the CNS loading was
+	 */
+	public void sample(float time, float depth, GasSource gas) throws CnsOtu.MaxPo2ExceededException {
+		if(gas != null) {
+			mGas = gas;
+		}
+		final float minutes = mTime < 0? 0: (time - mTime) / 60;
+		if(mGas != null && minutes > 0) {
+			mDeco.sample(mDepth, depth, minutes, mGas);
+			mCnsOtu.sample(mDepth, depth, minutes, mGas);
+		}
+		mTime = time;
+		mDepth = depth;
+		mCeiling = mNdl = mTts = Float.NaN;
+	}
+
+	public float getTime() { return Math.max(mTime, 0); }
+	public float getDepth() { return mDepth; }
+	public GasSource getGasSource() { return mGas; }
+	public float getCns() { return mCnsOtu.getCns(); }
+	public float getOtu() { return mCnsOtu.getOtu(); }
+
+	/**
+	 * @return The shallowest depth the diver could ascend to right now
+	 */
+	public float getCeiling() {
+		if(Float.isNaN(mCeiling)) {
+			mCeiling = mDeco.getCeiling();
+		}
+		return mCeiling;
+	}
+
+	/**
+	 * @return The minutes the diver could stay at this depth and still ascend
+	 * without stopping, or 0 if there's already a ceiling
+	 */
+	public float getNdl() {
+		if(Float.isNaN(mNdl)) {
+			mNdl = mGas == null || getCeiling() > 0? 0: mDeco.getNdl(mDeco.getDepth(), mGas);
+		}
+		return mNdl;
+	}
+
+	/**
+	 * @return The minutes it would take to ascend to the surface from here,
+	 * including stops
+	 */
+	public float getTimeToSurface() {
+		if(Float.isNaN(mTts)) {
+			mTts = mDeco.getTimeToSurface();
+		}
+		return mTts;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,365 @@
+package divestoclimb.lib.scuba;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Turns the samples a dive computer logged into profile lines of a Dive.
+ *
+ * Samples are read one at a time and never kept: a run of samples at the same
+ * depth on the same gas becomes one line, which is added to the end of the
+ * dive's profile as soon as the run is over. Memory use doesn't depend on how
+ * long the log is, and the dive can be run as the lines come in.
+ *
+ * Lines are SOURCE_USER lines with TIME_TYPE_RUN times. Since profile times
+ * are whole minutes, runs that end in the same minute are combined into one
+ * line at the deepest of their depths, on the gas the last of them used.
+ * Samples at the surface before the dive starts and after it ends are
+ * dropped.
+ */
+public class LogImporter {
+
+	private final ProfileIterator mIterator;
+	private final Units mUnits;
+
+	// The unit system CSV depths are in
+	private int mSampleUnits = Units.METRIC;
+	// How far the depth has to move from a line's depth to start a new line
+	private float mDepthTolerance = 1;
+
+	// The gas the last sample was on
+	private GasSource mGas;
+
+	// The run of samples being read. mRunGas is null until the dive starts.
+	private int mRunDepth;
+	private GasSource mRunGas = null;
+	private float mLastTime;
+
+	// The last finished run. It isn't added until the next run ends in a
+	// later minute, in case the two have to be combined.
+	private int mPendingDepth, mPendingMinute;
+	private GasSource mPendingGas = null;
+
+	private int mLines = 0;
+
+	/**
+	 * @param dive The dive to add the lines to. Its profile is created if it
+	 * doesn't have one.
+	 * @param gas The gas to use until the log says otherwise, or null if
+	 * the log always says
+	 */
+	public LogImporter(Dive dive, GasSource gas) {
+		if(dive.getProfile() == null) {
+			dive.setProfile(new ProfileList());
+		}
+		mIterator = new ProfileIterator(dive, ProfileItem.SOURCE_USER);
+		mUnits = dive.getUnits();
+		mGas = gas;
+	}
+
+	/**
+	 * Set the unit system the depths of CSV logs are in. UDDF logs are always
+	 * metric.
+	 * @param system Units.METRIC or Units.IMPERIAL
+	 */
+	public LogImporter setSampleUnits(int system) {
+		mSampleUnits = system;
+		return this;
+	}
+
+	/**
+	 * Set how much the depth can wander before a new line is started. The
+	 * default of one depth unit keeps a diver hovering between two depths
+	 * from making a line of every sample.
+	 * @param tolerance The depth change, in the dive's units
+	 */
+	public LogImporter setDepthTolerance(float tolerance) {
+		mDepthTolerance = tolerance;
+		return this;
+	}
+
+	/**
+	 * @return The number of lines added to the dive so far
+	 */
+	public int getLineCount() {
+		return mLines;
+	}
+
+	/**
+	 * Read one sample. Samples have to come in time order.
+	 * @param time The time of the sample, in seconds from the start of the
+	 * dive
+	 * @param depth The depth, in the dive's units
+	 * @param gas The gas being breathed, or null if it hasn't changed
+	 */
+	public void addSample(float time, float depth, GasSource gas) {
+		if(gas != null) {
+			mGas = gas;
+		}
+		if(mRunGas == null) {
+			// Still at the surface before the dive
+			if(depth < mDepthTolerance || mGas == null) {
+				return;
+			}
+			startRun(depth, mGas);
+		} else if(mGas != mRunGas || Math.abs(depth - mRunDepth) >= mDepthTolerance) {
+			endRun(time);
+			startRun(depth, mGas);
+		}
+		mLastTime = time;
+	}
+
+	/**
+	 * Add whatever lines are still waiting. This must be called once the
+	 * last sample has been read.
+	 * @return The number of lines added to the dive
+	 */
+	public int finish() {
+		if(mRunGas != null && mRunDepth > 0) {
+			endRun(mLastTime);
+		}
+		if(mPendingGas != null && mPendingDepth > 0) {
+			emit();
+		}
+		mRunGas = null;
+		mPendingGas = null;
+		return mLines;
+	}
+
+	private void startRun(float depth, GasSource gas) {
+		mRunDepth = Math.round(depth);
+		mRunGas = gas;
+	}
+
+	/**
+	 * Finish the current run, combining it with the last one if they end in
+	 * the same minute
+	 * @param time The time the next run starts, in seconds
+	 */
+	private void endRun(float time) {
+		final int minute = Math.round(time / 60);
+		if(mPendingGas != null && minute <= mPendingMinute) {
+			mPendingDepth = Math.max(mPendingDepth, mRunDepth);
+			mPendingGas = mRunGas;
+			return;
+		}
+		if(mPendingGas != null) {
+			emit();
+		}
+		mPendingDepth = mRunDepth;
+		mPendingMinute = minute;
+		mPendingGas = mRunGas;
+	}
+
+	private void emit() {
+		mIterator.appendItems(new ProfileItem[] {
+				new ProfileItem()
+						.setDepth(mPendingDepth)
+						.setTime(mPendingMinute)
+						.setTimeType(ProfileItem.TIME_TYPE_RUN)
+						.setGasSource(mPendingGas)
+		});
+		mLines ++;
+	}
+
+	/**
+	 * Read a CSV log. Fields may be separated by commas, semicolons or tabs.
+	 * If the first line names its columns, the columns called time, depth,
+	 * o2 and he are used. Otherwise the columns are time, depth, and
+	 * optionally the O2 and helium percentages, in that order. Times are in
+	 * seconds or in minutes and seconds like 12:30.
+	 * @param in The log
+	 * @return The number of lines added to the dive
+	 * @throws IOException If the log can't be read or a value isn't a number
+	 */
+	public int importCsv(Reader in) throws IOException {
+		final BufferedReader reader = in instanceof BufferedReader? (BufferedReader)in: new BufferedReader(in);
+		int timeColumn = 0, depthColumn = 1, o2Column = 2, heColumn = 3;
+		final String[] fields = new String[8];
+		String line;
+		for(int n = 1; (line = reader.readLine()) != null; n++) {
+			final int count = split(line, fields);
+			if(count == 0 || count == 1 && fields[0].length() == 0) {
+				continue;
+			}
+			if(n == 1 && ! isNumber(fields[0])) {
+				// A header
+				timeColumn = depthColumn = o2Column = heColumn = -1;
+				for(int i = 0; i < count; i++) {
+					final String name = fields[i].toLowerCase();
+					if(name.startsWith("time")) {
+						timeColumn = i;
+					} else if(name.startsWith("depth")) {
+						depthColumn = i;
+					} else if(name.startsWith("o2")) {
+						o2Column = i;
+					} else if(name.startsWith("he")) {
+						heColumn = i;
+					}
+				}
+				if(timeColumn < 0 || depthColumn < 0) {
+					throw new IOException("Line 1: no time or depth column");
+				}
+				continue;
+			}
+			try {
+				final float time = parseTime(field(fields, count, timeColumn)),
+						depth = Float.parseFloat(field(fields, count, depthColumn));
+				final String o2 = field(fields, count, o2Column);
+				GasSource gas = null;
+				if(o2.length() > 0) {
+					final String he = field(fields, count, heColumn);
+					gas = Mix.of(Double.parseDouble(o2) / 100, he.length() > 0? Double.parseDouble(he) / 100: 0);
+				}
+				addSample(time, mUnits.convertDepth(depth, mSampleUnits), gas);
+			} catch(IllegalArgumentException e) {
+				throw new IOException("Line " + n + ": " + e.getMessage());
+			}
+		}
+		return finish();
+	}
+
+	/**
+	 * Split a CSV line into fields
+	 * @return The number of fields. Any past the length of fields are
+	 * dropped.
+	 */
+	private static int split(String line, String[] fields) {
+		int count = 0, start = 0;
+		for(int i = 0; i <= line.length() && count < fields.length; i++) {
+			final char c = i < line.length()? line.charAt(i): ',';
+			if(c == ',' || c == ';' || c == '\t') {
+				fields[count ++] = line.substring(start, i).trim();
+				start = i + 1;
+			}
+		}
+		return count;
+	}
+
+	private static String field(String[] fields, int count, int column) {
+		return column >= 0 && column < count? fields[column]: "";
+	}
+
+	private static boolean isNumber(String field) {
+		return field.length() > 0 && (Character.isDigit(field.charAt(0)) || field.charAt(0) == '.');
+	}
+
+	/**
+	 * Parse a time in seconds, or in minutes and seconds separated by colons
+	 * @return The time in seconds
+	 */
+	private static float parseTime(String field) {
+		float time = 0;
+		int start = 0, colon;
+		while((colon = field.indexOf(':', start)) >= 0) {
+			time = (time + Integer.parseInt(field.substring(start, colon))) * 60;
+			start = colon + 1;
+		}
+		return time + Float.parseFloat(field.substring(start));
+	}
+
+	/**
+	 * Read the first dive of a UDDF log. The waypoints of its samples are
+	 * read as they're parsed, and switchmix elements are looked up in the
+	 * mixes of the gas definitions.
+	 * @param in The log
+	 * @return The number of lines added to the dive
+	 * @throws IOException If the log can't be read or isn't valid UDDF
+	 */
+	public int importUddf(InputStream in) throws IOException {
+		try {
+			SAXParserFactory.newInstance().newSAXParser().parse(in, new UddfHandler());
+		} catch(ParserConfigurationException e) {
+			throw new IOException(e.getMessage());
+		} catch(SAXException e) {
+			throw new IOException(e.getMessage());
+		} catch(IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		return finish();
+	}
+
+	private class UddfHandler extends DefaultHandler {
+		private final StringBuilder mText = new StringBuilder();
+		private final Map<String, Mix> mMixIds = new HashMap<String, Mix>();
+
+		// The mix being defined
+		private String mMixId = null;
+		private double mO2, mHe;
+
+		// 0 before the first dive, 1 in it, 2 after it
+		private int mDive = 0;
+		private boolean mInWaypoint = false;
+		private float mTime, mDepth;
+		private GasSource mGas;
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			final String name = name(localName, qName);
+			mText.setLength(0);
+			if(name.equals("mix") && mDive == 0) {
+				mMixId = attributes.getValue("id");
+				mO2 = 0;
+				mHe = 0;
+			} else if(name.equals("dive") && mDive == 0) {
+				mDive = 1;
+			} else if(mDive == 1 && name.equals("waypoint")) {
+				mInWaypoint = true;
+				mTime = mDepth = -1;
+				mGas = null;
+			} else if(mInWaypoint && name.equals("switchmix")) {
+				mGas = mMixIds.get(attributes.getValue("ref"));
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			mText.append(ch, start, length);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			final String name = name(localName, qName);
+			final String text = mText.toString().trim();
+			mText.setLength(0);
+			if(mInWaypoint) {
+				if(name.equals("divetime")) {
+					mTime = Float.parseFloat(text);
+				} else if(name.equals("depth")) {
+					mDepth = Float.parseFloat(text);
+				} else if(name.equals("waypoint")) {
+					mInWaypoint = false;
+					if(mTime >= 0 && mDepth >= 0) {
+						addSample(mTime, mUnits.convertDepth(mDepth, Units.METRIC), mGas);
+					}
+				}
+			} else if(mMixId != null) {
+				if(name.equals("o2")) {
+					mO2 = Double.parseDouble(text);
+				} else if(name.equals("he")) {
+					mHe = Double.parseDouble(text);
+				} else if(name.equals("mix")) {
+					mMixIds.put(mMixId, Mix.of(mO2, mHe));
+					mMixId = null;
+				}
+			} else if(name.equals("dive") && mDive == 1) {
+				mDive = 2;
+			}
+		}
+
+		private String name(String localName, String qName) {
+			return localName != null && localName.length() > 0? localName: qName;
+		}
+	}
+}
\ No newline at end of file
@@ -12,6 +12,9 @@ public class Mix extends GasSource {
 	
 	// The fraction of helium
 	private double mHe;
+
+	// The fraction of nitrogen, kept up to date with the other two
+	private double mN2;
 	
 	// The values of Van der Waals' a and b constants for each constituent gas
 	public static final float A_OXYGEN = 1.382f;
@@ -25,10 +28,31 @@ public class Mix extends GasSource {
 	public Mix(double o2, double he) {
 		reset(o2, he);
 	}
+
+	// Constructor for an interned mix
+	Mix(double o2, double he, int code, int index) {
+		super(code, index);
+		mO2 = o2;
+		mHe = he;
+		mN2 = 1 - he - o2;
+		computeAB();
+	}
+
+	/**
+	 * Get the interned Mix for a mixture
+	 * @param o2 The fraction of oxygen, rounded to thousandths
+	 * @param he The fraction of helium, rounded to thousandths
+	 * @return The one shared Mix, which can't be changed
+	 */
+	public static Mix of(double o2, double he) {
+		return (Mix)GasTable.get(GasTable.pack(o2, he, 0));
+	}
 	
 	public void reset(double o2, double he) {
+		checkMutable();
 		mO2 = o2;
 		mHe = he;
+		mN2 = 1 - he - o2;
 	}
 	
 	/**
@@ -48,11 +72,15 @@ public class Mix extends GasSource {
 	}
 	
 	public void setfO2(double fo2) {
+		checkMutable();
 		mO2 = fo2;
+		mN2 = 1 - mHe - fo2;
 	}
 	
 	public void setfHe(double fhe) {
+		checkMutable();
 		mHe = fhe;
+		mN2 = 1 - fhe - mO2;
 	}
 	
 	/**
@@ -76,7 +104,7 @@ public class Mix extends GasSource {
 	 * @return The nitrogen fraction
 	 */
 	public double getfN2() {
-		return 1 - mHe - mO2;
+		return mN2;
 	}
 
 	@Override
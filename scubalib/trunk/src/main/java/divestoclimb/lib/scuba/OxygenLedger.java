@@ -0,0 +1,242 @@
+package divestoclimb.lib.scuba;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a running account of a diver's oxygen exposure over a trip of many
+ * dives, across any number of missions. Each dive is entered with the time it
+ * starts, its runtime, and the CNS and OTU's it adds by itself. From those the
+ * ledger works out the CNS loading at the start and end of every dive, letting
+ * it wear off with a 90 minute half time over each surface interval, and the
+ * OTU's over the days before each dive for comparison against the REPEX
+ * multi-day limits.
+ *
+ * What a dive adds doesn't depend on the dives before it, so replanning one
+ * dive only means entering its new figures. The running totals after it are
+ * brought up to date with a little arithmetic the next time they're asked
+ * for; no earlier dive is touched and no dive is run again.
+ */
+public class OxygenLedger {
+
+	public static final int MINUTES_PER_DAY = 24 * 60;
+
+	// The REPEX limits on the total OTU's over 1 to 14 days
+	private static final int[] OTU_LIMITS = {
+		850, 1400, 1860, 2100, 2300, 2520, 2660, 2800, 2970, 3100, 3300, 3600, 3900, 4200
+	};
+
+	// The dives, in order of their start times
+	private float[] mStart, mRuntime, mCns, mOtu;
+	private int mCount = 0;
+
+	// Worked out from the dives. Everything from mSettledTo on may be out of
+	// date.
+	private float[] mCnsAtStart;
+	// mOtuBefore[i] is the total OTU's of the dives before dive i
+	private double[] mOtuBefore;
+	private int mSettledTo = 0;
+
+	public OxygenLedger() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity The number of dives to make room for up front
+	 */
+	public OxygenLedger(int capacity) {
+		capacity = Math.max(capacity, 1);
+		mStart = new float[capacity];
+		mRuntime = new float[capacity];
+		mCns = new float[capacity];
+		mOtu = new float[capacity];
+		mCnsAtStart = new float[capacity];
+		mOtuBefore = new double[capacity + 1];
+	}
+
+	public int getCount() { return mCount; }
+	public float getStart(int dive) { return mStart[check(dive)]; }
+	public float getRuntime(int dive) { return mRuntime[check(dive)]; }
+	public float getCns(int dive) { return mCns[check(dive)]; }
+	public float getOtu(int dive) { return mOtu[check(dive)]; }
+
+	/**
+	 * Enter a dive
+	 * @param start When the dive starts, in minutes from any fixed time the
+	 * whole ledger uses
+	 * @param runtime The runtime of the dive
+	 * @param cns The CNS loading the dive adds by itself
+	 * @param otu The OTU's the dive adds by itself
+	 * @return The position of the dive. Any dives that start after it move
+	 * up one.
+	 */
+	public int add(float start, float runtime, float cns, float otu) {
+		if(mCount == mStart.length) {
+			final int capacity = mCount * 2;
+			mStart = Arrays.copyOf(mStart, capacity);
+			mRuntime = Arrays.copyOf(mRuntime, capacity);
+			mCns = Arrays.copyOf(mCns, capacity);
+			mOtu = Arrays.copyOf(mOtu, capacity);
+			mCnsAtStart = Arrays.copyOf(mCnsAtStart, capacity);
+			mOtuBefore = Arrays.copyOf(mOtuBefore, capacity + 1);
+		}
+		int dive = mCount;
+		while(dive > 0 && mStart[dive - 1] > start) {
+			dive --;
+		}
+		final int after = mCount - dive;
+		System.arraycopy(mStart, dive, mStart, dive + 1, after);
+		System.arraycopy(mRuntime, dive, mRuntime, dive + 1, after);
+		System.arraycopy(mCns, dive, mCns, dive + 1, after);
+		System.arraycopy(mOtu, dive, mOtu, dive + 1, after);
+		mCount ++;
+		mStart[dive] = start;
+		set(dive, runtime, cns, otu);
+		return dive;
+	}
+
+	/**
+	 * Enter a dive that has been run
+	 * @param start When the dive starts
+	 * @param dive The dive. What it adds is what it ended with less what it
+	 * started with from earlier dives.
+	 * @return The position of the dive
+	 */
+	public int add(float start, Dive dive) {
+		final CnsOtu before = dive.buildCnsOtu();
+		return add(start, dive.getRuntime(), dive.getFinalCns() - before.getCns(),
+				dive.getFinalOtu() - before.getOtu());
+	}
+
+	/**
+	 * Change the figures of a dive after it's been replanned
+	 * @param dive The position of the dive
+	 * @param runtime Its new runtime
+	 * @param cns The CNS loading it now adds by itself
+	 * @param otu The OTU's it now adds by itself
+	 */
+	public void set(int dive, float runtime, float cns, float otu) {
+		check(dive);
+		mRuntime[dive] = runtime;
+		mCns[dive] = cns;
+		mOtu[dive] = otu;
+		mSettledTo = Math.min(mSettledTo, dive);
+	}
+
+	/**
+	 * Take a dive out of the ledger. Any dives after it move down one.
+	 * @param dive The position of the dive
+	 */
+	public void remove(int dive) {
+		check(dive);
+		final int after = mCount - dive - 1;
+		System.arraycopy(mStart, dive + 1, mStart, dive, after);
+		System.arraycopy(mRuntime, dive + 1, mRuntime, dive, after);
+		System.arraycopy(mCns, dive + 1, mCns, dive, after);
+		System.arraycopy(mOtu, dive + 1, mOtu, dive, after);
+		mCount --;
+		mSettledTo = Math.min(mSettledTo, dive);
+	}
+
+	/**
+	 * @return The CNS loading left over from earlier dives when a dive starts
+	 */
+	public float getCnsAtStart(int dive) {
+		settle(check(dive) + 1);
+		return mCnsAtStart[dive];
+	}
+
+	/**
+	 * @return The CNS loading when a dive ends
+	 */
+	public float getCnsAtEnd(int dive) {
+		return getCnsAtStart(dive) + mCns[dive];
+	}
+
+	/**
+	 * Get the CNS loading at any time, counting every dive that has ended by
+	 * then. A dive still going on at that time isn't counted.
+	 * @param time The time, on the same clock as the dive start times
+	 */
+	public float getCnsAt(float time) {
+		int dive = mCount - 1;
+		while(dive >= 0 && mStart[dive] + mRuntime[dive] > time) {
+			dive --;
+		}
+		if(dive < 0) {
+			return 0;
+		}
+		return CnsOtu.decayCns(getCnsAtEnd(dive), time - mStart[dive] - mRuntime[dive]);
+	}
+
+	/**
+	 * Get the OTU's of a dive and all the dives that started within some
+	 * days before it
+	 * @param dive The position of the dive
+	 * @param days The number of days, counted back from the end of the dive
+	 */
+	public float getOtuOverDays(int dive, int days) {
+		settle(check(dive) + 1);
+		final float since = mStart[dive] + mRuntime[dive] - days * MINUTES_PER_DAY;
+		// The first dive in the window
+		int first = Arrays.binarySearch(mStart, 0, dive + 1, since);
+		if(first < 0) {
+			first = - first - 1;
+		} else {
+			while(first > 0 && mStart[first - 1] == since) {
+				first --;
+			}
+		}
+		return (float)(mOtuBefore[dive + 1] - mOtuBefore[first]);
+	}
+
+	/**
+	 * Find how far a dive leaves the diver under the REPEX limits
+	 * @param dive The position of the dive
+	 * @return The fewest OTU's still allowed over any of the 1 to 14 day
+	 * windows ending with the dive. Negative if a limit has been passed.
+	 */
+	public float getOtuRemaining(int dive) {
+		float remaining = Float.POSITIVE_INFINITY;
+		for(int days = 1; days <= OTU_LIMITS.length; days++) {
+			remaining = Math.min(remaining, getOtuLimit(days) - getOtuOverDays(dive, days));
+		}
+		return remaining;
+	}
+
+	/**
+	 * @param days The number of days, from 1
+	 * @return The REPEX limit on the OTU's over that many days. Past 14 days
+	 * the limit goes on growing by 300 a day.
+	 */
+	public static int getOtuLimit(int days) {
+		if(days <= OTU_LIMITS.length) {
+			return OTU_LIMITS[days - 1];
+		}
+		return OTU_LIMITS[OTU_LIMITS.length - 1] + (days - OTU_LIMITS.length) * 300;
+	}
+
+	/**
+	 * Bring the running totals up to date for the first dives
+	 * @param count The number of dives that have to be up to date
+	 */
+	private void settle(int count) {
+		for(int i = mSettledTo; i < count; i++) {
+			if(i == 0) {
+				mCnsAtStart[0] = 0;
+				mOtuBefore[0] = 0;
+			} else {
+				final float end = mStart[i - 1] + mRuntime[i - 1];
+				mCnsAtStart[i] = CnsOtu.decayCns(mCnsAtStart[i - 1] + mCns[i - 1], mStart[i] - end);
+			}
+			mOtuBefore[i + 1] = mOtuBefore[i] + mOtu[i];
+		}
+		mSettledTo = Math.max(mSettledTo, count);
+	}
+
+	private int check(int dive) {
+		if(dive < 0 || dive >= mCount) {
+			throw new IndexOutOfBoundsException("Dive: " + dive);
+		}
+		return dive;
+	}
+}
\ No newline at end of file
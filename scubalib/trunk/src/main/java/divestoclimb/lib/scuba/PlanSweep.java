@@ -0,0 +1,285 @@
+package divestoclimb.lib.scuba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plans a set of what-if variants of a dive, like "5 minutes longer at the
+ * bottom" or "3 m deeper", with each of several decosets, and reports the
+ * time to surface, CNS, OTU and stops of each.
+ *
+ * The base dive is run once for each decoset. Every variant then starts from
+ * a copy of that run and resumes from the checkpoint just before the line it
+ * changes, so the lines they all share are only run once. The base runs and
+ * the variants are spread over an ExecutorService.
+ */
+public class PlanSweep {
+
+	/**
+	 * A change to one line of the base dive
+	 */
+	public static class Perturbation {
+		private final int mPosition, mDepthChange, mTimeChange;
+
+		/**
+		 * @param position The position of the line to change in the base
+		 * dive's profile
+		 * @param depthChange The amount to add to the line's depth
+		 * @param timeChange The amount to add to the line's time
+		 */
+		public Perturbation(int position, int depthChange, int timeChange) {
+			mPosition = position;
+			mDepthChange = depthChange;
+			mTimeChange = timeChange;
+		}
+
+		public int getPosition() { return mPosition; }
+		public int getDepthChange() { return mDepthChange; }
+		public int getTimeChange() { return mTimeChange; }
+
+		/**
+		 * Make this change to a dive
+		 * @param dive The dive to change
+		 * @param position The position of the line in dive's profile
+		 */
+		void apply(Dive dive, int position) {
+			final List<ProfileItem> profile = dive.getProfile();
+			// The line may inherit the values being changed, so merge the
+			// lines before it the way runDeco does to find what they are
+			final ProfileItem line = new ProfileItem();
+			for(int p = 0; p <= position; p++) {
+				final ProfileItem i = profile.get(p);
+				if(i.getLineSource() != ProfileItem.SOURCE_DECO) {
+					line.merge(i);
+				}
+			}
+			profile.get(position)
+					.setDepth(line.getDepth() + mDepthChange)
+					.setTime(line.getTime() + mTimeChange);
+			new ProfileIterator(dive, ProfileItem.SOURCE_DECO).invalidateFrom(position);
+		}
+	}
+
+	/**
+	 * The outcome of planning one variant
+	 */
+	public static class Result {
+		private final Perturbation mPerturbation;
+		private final Decoset mDecoset;
+		private final Dive mDive;
+		private final Exception mError;
+
+		Result(Perturbation perturbation, Decoset decoset, Dive dive, Exception error) {
+			mPerturbation = perturbation;
+			mDecoset = decoset;
+			mDive = dive;
+			mError = error;
+		}
+
+		public Perturbation getPerturbation() { return mPerturbation; }
+		public Decoset getDecoset() { return mDecoset; }
+
+		/**
+		 * @return The planned variant, with its deco stops in the profile. If
+		 * the base dive couldn't be planned with this decoset, this is null.
+		 */
+		public Dive getDive() { return mDive; }
+
+		/**
+		 * @return The exception that kept this variant from being planned,
+		 * such as a CnsOtu.MaxPo2ExceededException or an IllegalStateException
+		 * from a stop that can't be cleared, or null if it was planned
+		 */
+		public Exception getError() { return mError; }
+		public boolean isPlanned() { return mError == null; }
+
+		// These are only there for a variant that was planned. One that
+		// wasn't has no dive or only part of one, so they throw an
+		// IllegalStateException caused by getError() instead.
+		public float getTimeToSurface() { return planned().getTimeToSurface(); }
+		public float getRuntime() { return planned().getRuntime(); }
+		public float getCns() { return planned().getFinalCns(); }
+		public float getOtu() { return planned().getFinalOtu(); }
+
+		/**
+		 * @return The deco stops of the variant, in the order they're made
+		 * @throws IllegalStateException If the variant wasn't planned
+		 */
+		public List<ProfileItem> getStops() {
+			final List<ProfileItem> stops = new ArrayList<ProfileItem>();
+			for(ProfileItem i: planned().getProfile()) {
+				if(i.getLineSource() == ProfileItem.SOURCE_DECO) {
+					stops.add(i);
+				}
+			}
+			return stops;
+		}
+
+		private Dive planned() {
+			if(mError != null) {
+				throw new IllegalStateException("The variant wasn't planned", mError);
+			}
+			return mDive;
+		}
+	}
+
+	private final Dive mBase;
+	private final DecoAlgorithm.Factory mFactory;
+	private RunLimit mLimit = null;
+
+	/**
+	 * @param base The dive to make variants of. It isn't modified.
+	 * @param factory Makes the DecoAlgorithms to plan with, one per variant
+	 */
+	public PlanSweep(Dive base, DecoAlgorithm.Factory factory) {
+		mBase = base;
+		mFactory = factory;
+	}
+
+	/**
+	 * Set a limit every plan of the sweep has to finish within. A plan that
+	 * doesn't gets a RunLimit.ExceededException as its error, and so do the
+	 * variants of a base dive that doesn't.
+	 * @param limit The limit, or null for none
+	 */
+	public PlanSweep setLimit(RunLimit limit) {
+		mLimit = limit;
+		return this;
+	}
+
+	/**
+	 * Plan every combination of a perturbation and a decoset on a thread pool
+	 * with one thread per processor.
+	 * @see #run(List, List, ExecutorService)
+	 */
+	public List<Result> run(List<Perturbation> perturbations, List<Decoset> decosets) throws InterruptedException {
+		final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			return run(perturbations, decosets, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Plan every combination of a perturbation and a decoset
+	 * @param perturbations The changes to make to the base dive. Include a
+	 * Perturbation that changes nothing to get the base dive itself.
+	 * @param decosets The decosets to plan each perturbation with
+	 * @param executor The ExecutorService to run the plans on
+	 * @return The results, grouped by decoset in the order given, then by
+	 * perturbation in the order given
+	 * @throws InterruptedException If the thread was interrupted while
+	 * waiting for the plans
+	 */
+	public List<Result> run(List<Perturbation> perturbations, final List<Decoset> decosets, ExecutorService executor) throws InterruptedException {
+		// First run the base dive with each decoset, leaving a checkpoint on
+		// every line for the variants to start from
+		final List<Future<Dive>> bases = new ArrayList<Future<Dive>>(decosets.size());
+		for(final Decoset decoset: decosets) {
+			bases.add(executor.submit(new Callable<Dive>() {
+				public Dive call() throws Exception {
+					final Dive dive = mBase.clone();
+					dive.setDecoset(decoset);
+					if(! new ProfileIterator(dive, ProfileItem.SOURCE_DECO).runDeco(mFactory.newDecoAlgorithm(), false, mLimit)) {
+						throw new RunLimit.ExceededException("Base dive was not planned within the limit");
+					}
+					return dive;
+				}
+			}));
+		}
+
+		final List<Future<Result>> variants = new ArrayList<Future<Result>>(decosets.size() * perturbations.size());
+		for(int d = 0; d < decosets.size(); d++) {
+			final Decoset decoset = decosets.get(d);
+			Dive base;
+			Exception error = null;
+			try {
+				base = bases.get(d).get();
+			} catch(ExecutionException e) {
+				base = null;
+				error = e.getCause() instanceof Exception? (Exception)e.getCause(): new RuntimeException(e.getCause());
+			}
+			for(final Perturbation perturbation: perturbations) {
+				if(base == null) {
+					// Every variant fails the same way the base dive did
+					final Result failed = new Result(perturbation, decoset, null, error);
+					variants.add(executor.submit(new Callable<Result>() {
+						public Result call() {
+							return failed;
+						}
+					}));
+					continue;
+				}
+				final Dive variantBase = base;
+				variants.add(executor.submit(new Callable<Result>() {
+					public Result call() {
+						final Dive dive = variantBase.clone();
+						try {
+							perturbation.apply(dive, findLine(dive, lineNumber(perturbation.getPosition())));
+							if(! new ProfileIterator(dive, ProfileItem.SOURCE_DECO).runDeco(mFactory.newDecoAlgorithm(), true, mLimit)) {
+								throw new RunLimit.ExceededException("Variant was not planned within the limit");
+							}
+						} catch(Exception e) {
+							return new Result(perturbation, decoset, dive, e);
+						}
+						return new Result(perturbation, decoset, dive, null);
+					}
+				}));
+			}
+		}
+
+		final List<Result> results = new ArrayList<Result>(variants.size());
+		for(Future<Result> f: variants) {
+			try {
+				results.add(f.get());
+			} catch(ExecutionException e) {
+				// The tasks catch everything they can throw themselves
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Count the lines of the base dive that come before a position, not
+	 * counting deco stops. Deco runs only add and remove deco stops, so this
+	 * identifies the line in any copy of the base dive.
+	 * @param position The position of a line in the base dive
+	 * @return The number of lines before it
+	 */
+	private int lineNumber(int position) {
+		final List<ProfileItem> profile = mBase.getProfile();
+		if(profile.get(position).getLineSource() == ProfileItem.SOURCE_DECO) {
+			throw new IllegalArgumentException("Line " + position + " is a deco stop");
+		}
+		int line = 0;
+		for(int p = 0; p < position; p++) {
+			if(profile.get(p).getLineSource() != ProfileItem.SOURCE_DECO) {
+				line++;
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * Find where a line of the base dive ended up in a copy that has been run
+	 * @param dive The copy
+	 * @param line The number of the line, from lineNumber
+	 * @return The position of the line in dive
+	 */
+	private static int findLine(Dive dive, int line) {
+		final List<ProfileItem> profile = dive.getProfile();
+		for(int p = 0; p < profile.size(); p++) {
+			if(profile.get(p).getLineSource() != ProfileItem.SOURCE_DECO && line-- == 0) {
+				return p;
+			}
+		}
+		throw new IndexOutOfBoundsException();
+	}
+}
\ No newline at end of file
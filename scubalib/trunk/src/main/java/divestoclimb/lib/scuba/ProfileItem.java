@@ -6,7 +6,7 @@ package divestoclimb.lib.scuba;
  * source, for the same reason (e.g. planned or contingency)
  * @author Ben Roberts (divestoclimb@gmail.com)
  */
-public class ProfileItem {
+public class ProfileItem implements Cloneable {
 
 	private Long id;
 	protected long mDiveID;
@@ -96,6 +96,10 @@ public class ProfileItem {
 	// The amount of time it took to change depth in order to get to this
 	// ProfileItem as computed by a DecoAlgorithm that processed this Item
 	private float mDepthChangeTime = -1;
+
+	// The state of the deco calculation just before this item was last run,
+	// so it can be run again without replaying the items before it
+	private DecoCheckpoint mCheckpoint = null;
 	
 	public ProfileItem() { }
 
@@ -134,6 +138,15 @@ public class ProfileItem {
 		mDiveID = dive_id;
 	}
 
+	public ProfileItem clone() {
+		try {
+			return (ProfileItem)super.clone();
+		} catch (CloneNotSupportedException e) {
+			// Impossible since we implemented Cloneable
+			return null;
+		}
+	}
+
 	public void setId(long id) {
 		this.id = id;
 	}
@@ -179,6 +192,25 @@ public class ProfileItem {
 		return mDepthChangeTime;
 	}
 
+	/**
+	 * Only meant to be called by ProfileIterator to store the state of the
+	 * deco calculation before this item was run
+	 * @param checkpoint The checkpoint, or null to discard it
+	 * @return This ProfileItem instance
+	 */
+	public ProfileItem setCheckpoint(DecoCheckpoint checkpoint) {
+		mCheckpoint = checkpoint;
+		return this;
+	}
+	public DecoCheckpoint getCheckpoint() {
+		return mCheckpoint;
+	}
+
+	/**
+	 * Whether a line is up to date depends on where it is in the profile, so
+	 * Dive.isValid is the one to ask. This only reflects the flag stored with
+	 * this item.
+	 */
 	public boolean isValid() {
 		return mValid != INVALID;
 	}
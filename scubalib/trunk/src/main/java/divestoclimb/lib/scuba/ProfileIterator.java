@@ -1,22 +1,66 @@
 package divestoclimb.lib.scuba;
 
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.ListIterator;
 
 public class ProfileIterator {
 
+	/**
+	 * Hears about the results of runDeco as they're worked out, so they can
+	 * be shown before the whole dive has been run. Either method can stop
+	 * the run by returning false.
+	 */
+	public static interface Listener {
+		/**
+		 * Called after a line of the plan has been run
+		 * @param position The position of the line in the profile
+		 * @param line The line. Its segment and depth change times are filled
+		 * in.
+		 * @param runtime The runtime at the end of the line
+		 * @param ceiling The ceiling at the end of the line, or -1 if the
+		 * DecoAlgorithm doesn't report it
+		 * @param cns The CNS loading at the end of the line, in percent
+		 * @param otu The OTUs at the end of the line
+		 * @return false to stop the run here
+		 */
+		public boolean lineRun(int position, ProfileItem line, float runtime, float ceiling, float cns, float otu);
+
+		/**
+		 * Called after a deco stop has been made, including the stops of the
+		 * final ascent
+		 * @param position The position of the stop in the profile
+		 * @param stop The stop
+		 * @param runtime The runtime at the end of the stop
+		 * @param ceiling The depth of the next stop, which the ceiling had
+		 * risen to by the end of this one, or 0 for the last stop
+		 * @param cns The CNS loading at the end of the stop, in percent
+		 * @param otu The OTUs at the end of the stop
+		 * @return false to stop the run here
+		 */
+		public boolean stopMade(int position, ProfileItem stop, float runtime, float ceiling, float cns, float otu);
+	}
+
 	// A ProfileItem with all inherited attributes filled in from scanning
 	// the previous items, representing the current item
 	private ProfileItem mCurrentLine;
 	private int mPosition;
 	protected Dive mDive;
 
+	// The values each line of the profile resolves to once everything it
+	// inherits is filled in, by position. Only the lines up to its size are
+	// up to date. The rest are filled in when they're needed, so moving to a
+	// position only has to resolve the lines no move has reached since the
+	// last change before it.
+	private final ResolvedProfile mResolved = new ResolvedProfile();
+
 	// The source to use for any changes
 	private int mSource;
 
+	private Listener mListener = null;
+
 	public ProfileIterator(Dive dive, int source) {
-		mPosition = 0;
+		// Start before the first line so moveToFirst loads it
+		mPosition = -1;
 		mCurrentLine = null;
 		mDive = dive;
 		mSource = source;
@@ -32,26 +76,57 @@ public class ProfileIterator {
 
 	/**
 	 * Move the current profile position to an arbitrary position. The position
-	 * will be at the next active line in the profile at or after position
+	 * will be at the next active line in the profile at or after position.
+	 * Inherited values are looked up in an index rather than merged from the
+	 * start of the profile, so this takes constant time for any line that has
+	 * been reached before, in either direction.
+	 *
+	 * The index only knows about changes made through this iterator. Anything
+	 * else that changes the profile has to call invalidateFrom afterward.
 	 * @param position The new zero-indexed position. 0 <= position < count
 	 * @return true if the operation succeeded, false if position is invalid or
 	 * a data error occurred
 	 */
 	public boolean moveToPosition(int position) {
-		if(mPosition > position) {
-			// We're moving backwards. There's no easy way to do this except
-			// to start from the beginning again
-			mPosition = -1;
-		} else if(mPosition == position) {
-			// Trivial case. We're already there!
-			return true;
+		final List<ProfileItem> profile = mDive.getProfile();
+		if(position < 0) {
+			return false;
 		}
-		while(mPosition < position) {
-			if(! moveToNext()) {
-				return false;
-			}
+		// Skip inactive lines
+		while(position < profile.size() && ! profile.get(position).isActive()) {
+			position++;
+		}
+		if(position >= profile.size()) {
+			// No more items
+			return false;
+		}
+		resolveTo(position);
+		if(mCurrentLine == null) {
+			mCurrentLine = new ProfileItem();
+		}
+		mResolved.copyTo(position, mCurrentLine).merge(profile.get(position));
+		mPosition = position;
+		// As a sanity check, make sure the state is not raw. It should never be
+		// after a merge.
+		return ! mCurrentLine.isRaw();
+	}
+
+	/**
+	 * Bring the index of resolved values up to date through a position
+	 */
+	private void resolveTo(int position) {
+		final List<ProfileItem> profile = mDive.getProfile();
+		for(int p = mResolved.size(); p <= position; p++) {
+			mResolved.append(profile.get(p));
 		}
-		return true;
+	}
+
+	/**
+	 * Forget the resolved values from a position on, because the line there
+	 * or before it changed
+	 */
+	private void forgetFrom(int position) {
+		mResolved.truncate(position);
 	}
 	
 	/**
@@ -69,26 +144,7 @@ public class ProfileIterator {
 	 * a data error occurred
 	 */
 	public boolean moveToNext() {
-		do {
-			List<ProfileItem> profile = mDive.getProfile();
-			// Fetch the next ProfileItem and merge its values with mPreviousState
-			if(mPosition + 1 >= profile.size()) {
-				// No more items
-				return false;
-			}
-			final ProfileItem next = profile.get(++mPosition);
-			if(mPosition == 0) {
-				mCurrentLine = next;
-			} else if(mCurrentLine == null) {
-				// This is an error. mCurrentLine cannot be null if position is nonzero.
-				return false;
-			} else {
-				mCurrentLine.merge(next);
-			}
-		} while(! mCurrentLine.isActive());
-		// As a sanity check, make sure the state is not raw. It should never be
-		// after a merge.
-		return ! mCurrentLine.isRaw();
+		return moveToPosition(mPosition + 1);
 	}
 
 	public int getSource() {
@@ -100,6 +156,24 @@ public class ProfileIterator {
 		return this;
 	}
 
+	/**
+	 * Set the listener runDeco tells about each line and stop
+	 * @param listener The listener, or null for none
+	 */
+	public ProfileIterator setListener(Listener listener) {
+		mListener = listener;
+		return this;
+	}
+
+	/**
+	 * Get the current line with everything it inherits filled in
+	 * @return The resolved line. The same object is updated by every move, so
+	 * copy it to keep it.
+	 */
+	public ProfileItem getCurrentLine() {
+		return mCurrentLine;
+	}
+
 	protected ProfileItem getCurrentItem() {
 		return mDive.getProfile().get(mPosition);
 	}
@@ -108,18 +182,33 @@ public class ProfileIterator {
 		newItem.setLineSource(mSource);
 		List<ProfileItem> profile = mDive.getProfile();
 		profile.add(mPosition + 1, newItem);
-		// Go through all items after this one and mark them invalid if they
-		// can be marked as such
-		ListIterator<ProfileItem> i = profile.listIterator(mPosition + 1);
-		while(i.hasNext()) {
-			ProfileItem item = i.next();
-			if(item.getValid() != ProfileItem.ALWAYS_VALID) {
-				item.setValid(ProfileItem.INVALID);
-				//item.commit();
-			}
-		}
+		invalidateFrom(mPosition + 1);
 		return false;
 	}
+
+	/**
+	 * Add items to the end of the profile with this iterator's source. Nothing
+	 * comes after them, so nothing is invalidated.
+	 * @param items The items to add
+	 */
+	public void appendItems(ProfileItem[] items) {
+		final List<ProfileItem> profile = mDive.getProfile();
+		for(int i = 0; i < items.length; i++) {
+			items[i].setLineSource(mSource);
+			profile.add(items[i]);
+		}
+	}
+
+	/**
+	 * Mark all items from the given position on invalid, except those that
+	 * are always valid. Only the dive's watermark moves, so this doesn't
+	 * depend on how many items follow.
+	 * @param position The position of the first item to invalidate
+	 */
+	public void invalidateFrom(int position) {
+		forgetFrom(position);
+		mDive.invalidateFrom(position);
+	}
 	
 	public boolean replaceItem(ProfileItem newItem) {
 		final ProfileItem current = mDive.getProfile().get(mPosition);
@@ -129,6 +218,7 @@ public class ProfileIterator {
 			newItem.setLineSource(mSource);
 			current.merge(newItem);
 			//current.commit();
+			invalidateFrom(mPosition);
 		} else {
 			// We can't overwrite the item. Instead, we deactivate it and
 			// append a new one after it.
@@ -140,26 +230,80 @@ public class ProfileIterator {
 	}
 	
 	/**
-	 * Remove all profile items that match the current source.
+	 * Remove all profile items that match the current source in one pass.
+	 * Lines an active one of them was shadowing are made active again.
+	 * @return The position of the first line that was removed or made active
+	 * again, which is where a deco run has to pick up from, or -1 if nothing
+	 * changed
 	 */
-	public void removeMyItems() {
-		int p = 0;
-		List<ProfileItem> profile = mDive.getProfile();
-		for(Iterator<ProfileItem> it = profile.iterator(); it.hasNext(); ) {
-			ProfileItem i = it.next();
-			if(i.getLineSource() == mSource) {
-				if(p > 0) {
-					ProfileItem lastItem = profile.get(p - 1);
-					if(i.isActive() && ! lastItem.isActive()) {
-						lastItem.setActive(true);
-						//lastItem.commit();
+	public int removeMyItems() {
+		return removeItems(0, mSource, true);
+	}
+
+	/**
+	 * Remove the items with a given source from a position on, moving the
+	 * rest down over them in one pass. Contingency lines are neither part of
+	 * the plan nor made by running it, so removing them leaves every other
+	 * line as up to date as it was.
+	 * @param from The position to start at
+	 * @param source The source of the items to remove
+	 * @param reactivate Whether to make the line before a removed active item
+	 * active, if it isn't
+	 * @return The position of the first line that was removed or made active
+	 * again, or -1 if nothing changed
+	 */
+	private int removeItems(int from, int source, boolean reactivate) {
+		final List<ProfileItem> profile = mDive.getProfile();
+		final int size = profile.size(), validUpTo = mDive.getValidUpTo();
+		// Whether the lines left have to be run again
+		boolean changed = source != ProfileItem.SOURCE_CONTINGENCY;
+		int kept = from, first = -1, removedValid = 0;
+		for(int p = from; p < size; p++) {
+			final ProfileItem i = profile.get(p);
+			if(i.getLineSource() != source) {
+				if(kept != p) {
+					profile.set(kept, i);
+					if(changed) {
+						// The checkpoint was taken with the removed lines in
+						// front of it, so a run can't resume from it
+						i.setCheckpoint(null);
 					}
 				}
-				it.remove();
-			} else {
-				p++;
+				kept ++;
+				continue;
+			}
+			if(first < 0) {
+				first = kept;
+			}
+			if(p < validUpTo) {
+				removedValid ++;
+			}
+			if(reactivate && kept > 0 && i.isActive()) {
+				final ProfileItem lastItem = profile.get(kept - 1);
+				if(! lastItem.isActive()) {
+					lastItem.setActive(true);
+					// Any checkpoint it has is from before it was shadowed
+					lastItem.setCheckpoint(null);
+					first = Math.min(first, kept - 1);
+					changed = true;
+					//lastItem.commit();
+				}
 			}
 		}
+		if(kept < size) {
+			profile.subList(kept, size).clear();
+		}
+		if(first < 0) {
+			return first;
+		}
+		if(changed) {
+			invalidateFrom(first);
+		} else {
+			// The watermark moves down with the lines in front of it
+			forgetFrom(first);
+			mDive.setValidUpTo(validUpTo - removedValid);
+		}
+		return first;
 	}
 	
 	/*
@@ -193,83 +337,320 @@ public class ProfileIterator {
 	}*/
 
 	/**
-	 * Runs the current DecoAlgorithm and CnsOtu against the given profile
+	 * Runs the current DecoAlgorithm and CnsOtu against the given profile,
+	 * replacing any deco stops from an earlier run
 	 * @param deco The DecoAlgorithm to use. It should already be
 	 * initialized with everything it needs to run, including any previous
 	 * dives for which to account for residual nitrogen and helium.
+	 * @return true if the whole dive was run, false if the listener stopped it
 	 * @throws IllegalStateException
 	 * @throws CnsOtu.MaxPo2ExceededException thrown by CnsOtu if the max pO2
 	 * is exceeded during the operation
 	 */
-	public void runDeco(DecoAlgorithm deco) throws IllegalStateException, CnsOtu.MaxPo2ExceededException {
-		GasSource lastGasSource = null;
-		mDive.initializeDeco(deco);
-		CnsOtu cnsOtuState = mDive.buildCnsOtu();
-		moveToFirst();
-		List<ProfileItem> profile = mDive.getProfile();
-		while(moveToNext()) {
-			ProfileItem i = mCurrentLine;
+	public boolean runDeco(DecoAlgorithm deco) throws IllegalStateException, CnsOtu.MaxPo2ExceededException {
+		return runDeco(deco, false);
+	}
+
+	/**
+	 * Runs the current DecoAlgorithm and CnsOtu against the given profile,
+	 * replacing any deco stops from an earlier run
+	 * @param deco The DecoAlgorithm to use
+	 * @param resume If true, don't replay lines that haven't changed since
+	 * the last run. The calculation picks up from the checkpoint stored with
+	 * the last line at or before the first invalid line, and only the deco
+	 * stops after that are regenerated. If no line has a checkpoint from a
+	 * run with the same kind of algorithm, the same configuration and the
+	 * same previous dive, the whole profile is run as if resume were false.
+	 * @return true if the whole dive was run. false if the listener stopped
+	 * it, in which case the profile is up to date through the line or stop
+	 * it stopped at, the lines after it haven't been run and have no deco
+	 * stops, and the dive's final state hasn't been saved.
+	 * @throws IllegalStateException
+	 * @throws CnsOtu.MaxPo2ExceededException thrown by CnsOtu if the max pO2
+	 * is exceeded during the operation
+	 */
+	public boolean runDeco(DecoAlgorithm deco, boolean resume) throws IllegalStateException, CnsOtu.MaxPo2ExceededException {
+		return runDeco(deco, resume, null);
+	}
+
+	/**
+	 * Runs the current DecoAlgorithm and CnsOtu against the given profile
+	 * until it's done or a limit is passed
+	 * @param deco The DecoAlgorithm to use
+	 * @param resume If true, don't replay lines that haven't changed since
+	 * the last run
+	 * @param limit The limit to check between lines and between the stops of
+	 * each ascent, or null for none
+	 * @return true if the whole dive was run. false if the listener stopped
+	 * it or the limit was passed, in which case the profile is left the same
+	 * way as when the listener stops it and a later run with resume picks up
+	 * from there.
+	 * @throws IllegalStateException
+	 * @throws CnsOtu.MaxPo2ExceededException thrown by CnsOtu if the max pO2
+	 * is exceeded during the operation
+	 */
+	public boolean runDeco(DecoAlgorithm deco, boolean resume, RunLimit limit) throws IllegalStateException, CnsOtu.MaxPo2ExceededException {
+		deco.setLimit(limit);
+		try {
+			return run(deco, resume, limit);
+		} finally {
+			deco.setLimit(null);
+		}
+	}
+
+	private boolean run(DecoAlgorithm deco, boolean resume, RunLimit limit) throws CnsOtu.MaxPo2ExceededException {
+		final List<ProfileItem> profile = mDive.getProfile();
+		// The contingencies were planned from the bottom of the last run,
+		// which this one replaces
+		removeItems(0, ProfileItem.SOURCE_CONTINGENCY, false);
+		final DecoCheckpoint.Basis basis = mDive.getDecoBasis(deco);
+		int start = resume? findCheckpoint(basis): -1;
+
+		GasSource lastGasSource;
+		CnsOtu cnsOtuState;
+		if(start >= 0) {
+			final DecoCheckpoint checkpoint = profile.get(start).getCheckpoint();
+			mDive.resumeDeco(deco, checkpoint);
+			cnsOtuState = mDive.buildCnsOtu(checkpoint);
+			lastGasSource = checkpoint.getLastGasSource();
+			// The deco stops in front of the line we're resuming from were
+			// made by running it, so they go too, along with every stop
+			// after it
+			while(start > 0 && profile.get(start - 1).getLineSource() == ProfileItem.SOURCE_DECO) {
+				start --;
+			}
+			removeItems(start, ProfileItem.SOURCE_DECO, false);
+			forgetFrom(start);
+		} else {
+			mDive.initializeDeco(deco);
+			cnsOtuState = mDive.buildCnsOtu();
+			lastGasSource = null;
+			start = 0;
+			removeItems(0, ProfileItem.SOURCE_DECO, false);
+			forgetFrom(0);
+		}
+
+		// Lines inherit their values from the lines before them, so the lines
+		// before the starting point still have to be resolved, but not run.
+		// Deco stops and contingency lines are left out because they aren't
+		// part of the plan.
+		final ResolvedProfile plan = new ResolvedProfile(profile.size());
+		int p = 0;
+		for(; p < start; p++) {
+			final ProfileItem i = profile.get(p);
+			if(isPlanLine(i)) {
+				plan.append(i);
+			}
+		}
+		// Where the final deco stops go: right after the last line of the plan
+		int end = p;
+		while(p < profile.size()) {
+			final ProfileItem i = profile.get(p);
+			if(! isPlanLine(i)) {
+				p++;
+				continue;
+			}
+			final int line = plan.append(i);
 			// Skip inactive items
 			if(! i.isActive()) {
+				end = ++p;
 				continue;
 			}
+			if(plan.isRaw(line)) {
+				throw new IllegalStateException("Profile line " + p + " is missing values to inherit");
+			}
 			if(lastGasSource == null) {
-				lastGasSource = i.getGasSource();
+				lastGasSource = plan.getGasSource(line);
+			}
+			if(limit != null && limit.isExceeded()) {
+				return stopAt(p);
 			}
+			i.setCheckpoint(new DecoCheckpoint(basis, deco.getState(), cnsOtuState, lastGasSource));
 
 			// Run the deco algorithm
-			ProfileItem deco_items[] = deco.run(i);
+			final float lineRuntime = deco.getRuntime();
+			ProfileItem deco_items[];
+			try {
+				deco_items = deco.run(plan, line);
+			} catch(RunLimit.ExceededException e) {
+				return stopAt(p);
+			}
+			i.setSegtime(plan.getSegtime(line));
+			i.setDepthChangeTime(plan.getDepthChangeTime(line));
 
 			// Any ProfileItems that were returned need to be added to the profile
 			// before the current item as deco stops
-			for(int j = 0; j < deco_items.length; j++) {
-				final ProfileItem item = deco_items[j];
-				profile.add(mPosition ++ - 1, item);
-				
-				// CNS/OTU for deco stop
-				cnsOtuState.changeDepth(item.getDepth(), item.getDepthChangeTime(), lastGasSource);
-				cnsOtuState.run(item.getSegtime(), item.getGasSource());
-				
-				// Set lastGasSource so we know what to use for the next
-				// CNS/OTU depth change
-				lastGasSource = item.getGasSource();
+			insert(profile, p, deco_items);
+			if(mListener == null) {
+				lastGasSource = runCnsOtu(cnsOtuState, deco_items, lastGasSource);
+			} else if(! runStops(cnsOtuState, deco_items, p, lineRuntime, lastGasSource)) {
+				return stopAt(p);
+			} else if(deco_items.length > 0) {
+				lastGasSource = deco_items[deco_items.length - 1].getGasSource();
 			}
+			p += deco_items.length;
 			
 			// CNS/OTU for the original ProfileItem we processed
-			cnsOtuState.changeDepth(i.getDepth(), i.getSegtime(), lastGasSource);
-			cnsOtuState.run(i.getSegtime(), i.getGasSource());
+			cnsOtuState.run(plan, line, lastGasSource);
 			
 			// Set lastGasSource so we know what to use for the next
 			// CNS/OTU depth change
 			lastGasSource = deco.getGasSource();
+			end = ++p;
+			if(mListener != null && ! mListener.lineRun(end - 1, i, deco.getRuntime(), getCeiling(deco),
+					cnsOtuState.getCns(), cnsOtuState.getOtu())) {
+				return stopAt(end);
+			}
 		}
+		mPosition = end - 1;
+		mCurrentLine = null;
+
 		// Now ascend to the surface
-		float lastRuntime = deco.getRuntime();
-		ProfileItem deco_items[] = deco.surface();
+		mDive.saveBottom(new DecoCheckpoint(basis, deco.getState(), cnsOtuState, lastGasSource));
+		final float bottomRuntime = deco.getRuntime();
+		float lastRuntime = bottomRuntime;
+		ProfileItem deco_items[];
+		try {
+			deco_items = deco.surface();
+		} catch(RunLimit.ExceededException e) {
+			return stopAt(end);
+		}
 		
 		// Final deco stops before surfacing
+		insert(profile, end, deco_items);
+		if(mListener == null) {
+			lastGasSource = runCnsOtu(cnsOtuState, deco_items, lastGasSource);
+		} else if(! runStops(cnsOtuState, deco_items, end, bottomRuntime, lastGasSource)) {
+			return stopAt(end);
+		} else if(deco_items.length > 0) {
+			lastGasSource = deco_items[deco_items.length - 1].getGasSource();
+		}
 		for(int j = 0; j < deco_items.length; j++) {
-			ProfileItem i = deco_items[j];
-			profile.add(mPosition ++ - 1, i);
-			
-			// CNS/OTU for deco stop
-			cnsOtuState.changeDepth(i.getDepth(), i.getDepthChangeTime(), lastGasSource);
-			cnsOtuState.run(i.getSegtime(), i.getGasSource());
-			
-			// Set lastGasSource so we know what to use for the next
-			// CNS/OTU depth change
-			lastGasSource = i.getGasSource();
-			
 			// Update lastRuntime so we can compute the surface depth change time
-			lastRuntime += i.getDepthChangeTime() + i.getSegtime();
+			lastRuntime += deco_items[j].getDepthChangeTime() + deco_items[j].getSegtime();
 		}
 		// The final ascent time is computed by comparing the runtime at the
 		// end of the last item we processed to deco.getRuntime()
 		cnsOtuState.changeDepth(0, deco.getRuntime() - lastRuntime, lastGasSource);
 		
+		// Everything in the profile is now up to date
+		mDive.setValidUpTo(profile.size());
 		mDive.saveDeco(deco);
 		mDive.saveCnsOtu(cnsOtuState);
+		mDive.saveRuntime(deco.getRuntime(), deco.getRuntime() - bottomRuntime);
 		//mDive.commit();
+		return true;
+	}
+
+	/**
+	 * Leave a run that was stopped part way through in a state the next run
+	 * can resume from
+	 * @param position The position of the first line that wasn't run
+	 * @return false
+	 */
+	private boolean stopAt(int position) {
+		final List<ProfileItem> profile = mDive.getProfile();
+		// A checkpoint left there by an earlier run may not match the lines
+		// before it any more, and the next run could resume from it
+		if(position < profile.size()) {
+			profile.get(position).setCheckpoint(null);
+		}
+		mDive.setValidUpTo(position);
+		mPosition = position - 1;
+		mCurrentLine = null;
+		return false;
+	}
+
+	/**
+	 * Run the CNS/OTU model over a set of deco stops that have been put in
+	 * the profile, telling the listener about each
+	 * @param position The position of the first stop in the profile
+	 * @param runtime The runtime before the first stop
+	 * @return false if the listener asked to stop
+	 */
+	private boolean runStops(CnsOtu cnsOtuState, ProfileItem[] stops, int position, float runtime, GasSource lastGasSource) throws CnsOtu.MaxPo2ExceededException {
+		for(int j = 0; j < stops.length; j++) {
+			final ProfileItem item = stops[j];
+			cnsOtuState.changeDepth(item.getDepth(), item.getDepthChangeTime(), lastGasSource);
+			cnsOtuState.run(item.getSegtime(), item.getGasSource());
+			lastGasSource = item.getGasSource();
+			runtime += item.getDepthChangeTime() + item.getSegtime();
+			final float ceiling = j + 1 < stops.length? stops[j + 1].getDepth(): 0;
+			if(! mListener.stopMade(position + j, item, runtime, ceiling, cnsOtuState.getCns(), cnsOtuState.getOtu())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static float getCeiling(DecoAlgorithm deco) {
+		return deco instanceof DecoStatus? ((DecoStatus)deco).getCeiling(): -1;
+	}
+
+	/**
+	 * Insert a batch of items into a profile in one go
+	 */
+	private static void insert(List<ProfileItem> profile, int position, ProfileItem[] items) {
+		if(profile instanceof ProfileList) {
+			((ProfileList)profile).splice(position, 0, items);
+		} else {
+			profile.addAll(position, Arrays.asList(items));
+		}
+	}
+
+	/**
+	 * Decide whether a line is part of the plan the diver follows, rather
+	 * than something generated from it
+	 */
+	private static boolean isPlanLine(ProfileItem i) {
+		final int source = i.getLineSource();
+		return source != ProfileItem.SOURCE_DECO && source != ProfileItem.SOURCE_CONTINGENCY;
+	}
+
+	/**
+	 * Find the line to resume a deco run from
+	 * @param basis What the run starts from
+	 * @return The position of the last line at or before the first invalid
+	 * line that has a checkpoint taken from the same basis, or -1 if there
+	 * isn't one
+	 */
+	private int findCheckpoint(DecoCheckpoint.Basis basis) {
+		final List<ProfileItem> profile = mDive.getProfile();
+		int found = -1;
+		for(int p = 0; p < profile.size(); p++) {
+			final ProfileItem i = profile.get(p);
+			if(isPlanLine(i) && i.isActive() && i.getCheckpoint() != null
+					&& basis.equals(i.getCheckpoint().getBasis())) {
+				found = p;
+			}
+			if(! mDive.isValid(p)) {
+				break;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Run the CNS/OTU model over a set of deco stops
+	 * @param cnsOtuState The CNS/OTU model
+	 * @param stops The deco stops
+	 * @param lastGasSource The gas source being breathed before the first
+	 * stop
+	 * @return The gas source being breathed after the last stop
+	 * @throws CnsOtu.MaxPo2ExceededException
+	 */
+	static GasSource runCnsOtu(CnsOtu cnsOtuState, ProfileItem[] stops, GasSource lastGasSource) throws CnsOtu.MaxPo2ExceededException {
+		for(int j = 0; j < stops.length; j++) {
+			final ProfileItem item = stops[j];
+			// CNS/OTU for deco stop
+			cnsOtuState.changeDepth(item.getDepth(), item.getDepthChangeTime(), lastGasSource);
+			cnsOtuState.run(item.getSegtime(), item.getGasSource());
+			
+			// Set lastGasSource so we know what to use for the next
+			// CNS/OTU depth change
+			lastGasSource = item.getGasSource();
+		}
+		return lastGasSource;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+package divestoclimb.lib.scuba;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The list a Dive keeps its profile in. It's a gap buffer: the items are kept
+ * in an array with a run of empty slots, the gap, wherever the last insertion
+ * or removal was made. Inserting or removing next to the last change only
+ * fills or widens the gap instead of shifting everything after it, so runDeco
+ * adding stops as it works its way down the profile, or removing the stops of
+ * the last run, costs time in proportion to the number of lines it moves past
+ * rather than the number of stops times the length of the profile.
+ *
+ * A whole batch of stops can be put in place in one pass with splice.
+ */
+public class ProfileList extends AbstractList<ProfileItem> implements RandomAccess {
+
+	private ProfileItem[] mItems;
+	// The gap is the slots from mGapStart up to but not including mGapEnd
+	private int mGapStart, mGapEnd;
+
+	public ProfileList() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity The number of items to make room for up front
+	 */
+	public ProfileList(int capacity) {
+		mItems = new ProfileItem[Math.max(capacity, 1)];
+		mGapStart = 0;
+		mGapEnd = mItems.length;
+	}
+
+	/**
+	 * @param items The items to start with, in order
+	 */
+	public ProfileList(Collection<? extends ProfileItem> items) {
+		this(items.size() + 16);
+		addAll(items);
+	}
+
+	@Override
+	public int size() {
+		return mItems.length - (mGapEnd - mGapStart);
+	}
+
+	@Override
+	public ProfileItem get(int index) {
+		checkIndex(index, size() - 1);
+		return mItems[index < mGapStart? index: index + mGapEnd - mGapStart];
+	}
+
+	@Override
+	public ProfileItem set(int index, ProfileItem item) {
+		checkIndex(index, size() - 1);
+		final int i = index < mGapStart? index: index + mGapEnd - mGapStart;
+		final ProfileItem old = mItems[i];
+		mItems[i] = item;
+		return old;
+	}
+
+	@Override
+	public void add(int index, ProfileItem item) {
+		checkIndex(index, size());
+		moveGap(index, 1);
+		mItems[mGapStart ++] = item;
+		modCount ++;
+	}
+
+	@Override
+	public ProfileItem remove(int index) {
+		checkIndex(index, size() - 1);
+		moveGap(index, 0);
+		final ProfileItem old = mItems[mGapEnd];
+		mItems[mGapEnd ++] = null;
+		modCount ++;
+		return old;
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends ProfileItem> items) {
+		final ProfileItem[] array = items.toArray(new ProfileItem[items.size()]);
+		splice(index, 0, array);
+		return array.length > 0;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends ProfileItem> items) {
+		return addAll(size(), items);
+	}
+
+	@Override
+	protected void removeRange(int from, int to) {
+		splice(from, to - from, new ProfileItem[0]);
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(mItems, null);
+		mGapStart = 0;
+		mGapEnd = mItems.length;
+		modCount ++;
+	}
+
+	/**
+	 * Replace a run of items with others in one pass
+	 * @param index The position of the first item to replace
+	 * @param count The number of items to remove from there
+	 * @param items The items to put in their place
+	 */
+	public void splice(int index, int count, ProfileItem[] items) {
+		checkIndex(index, size());
+		checkIndex(index + count, size());
+		moveGap(index, items.length - count);
+		// The items being removed are now just after the gap
+		Arrays.fill(mItems, mGapEnd, mGapEnd + count, null);
+		mGapEnd += count;
+		System.arraycopy(items, 0, mItems, mGapStart, items.length);
+		mGapStart += items.length;
+		modCount ++;
+	}
+
+	/**
+	 * Move the gap to a position, making sure it's big enough for an
+	 * insertion there
+	 * @param index The position the gap should start at
+	 * @param room The number of items that will be inserted there
+	 */
+	private void moveGap(int index, int room) {
+		final int gap = mGapEnd - mGapStart;
+		if(gap < room) {
+			// Grow the array, moving the gap to the index on the way
+			final int size = size();
+			final int length = Math.max(mItems.length * 2, size + room);
+			final ProfileItem[] items = new ProfileItem[length];
+			final int after = size - index, end = length - after;
+			for(int i = 0; i < index; i++) {
+				items[i] = get(i);
+			}
+			for(int i = 0; i < after; i++) {
+				items[end + i] = get(index + i);
+			}
+			mItems = items;
+			mGapStart = index;
+			mGapEnd = end;
+		} else if(index < mGapStart) {
+			// Move the items between the index and the gap to after it
+			System.arraycopy(mItems, index, mItems, index + gap, mGapStart - index);
+			Arrays.fill(mItems, index, Math.min(mGapStart, index + gap), null);
+			mGapStart = index;
+			mGapEnd = index + gap;
+		} else if(index > mGapStart) {
+			// Move the items between the gap and the index to before it
+			final int end = index + gap;
+			System.arraycopy(mItems, mGapEnd, mItems, mGapStart, index - mGapStart);
+			Arrays.fill(mItems, Math.max(mGapEnd, index), end, null);
+			mGapStart = index;
+			mGapEnd = end;
+		}
+	}
+
+	private static void checkIndex(int index, int max) {
+		if(index < 0 || index > max) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+	}
+
+	/**
+	 * Copy a list of items into a ProfileList, unless it already is one
+	 */
+	static ProfileList of(List<ProfileItem> items) {
+		return items instanceof ProfileList? (ProfileList)items: new ProfileList(items);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,219 @@
+package divestoclimb.lib.scuba;
+
+import java.util.Arrays;
+
+/**
+ * Reduces a logged series of depth samples to the few straight segments that
+ * follow it to within a depth and time tolerance, using the Douglas-Peucker
+ * algorithm. A segment is split at the sample furthest from it until every
+ * sample is close enough, where the distance is measured with depth in units
+ * of the depth tolerance and time in units of the time tolerance.
+ *
+ * The splitting is done with a stack of its own rather than by recursion, so
+ * a series of any length can be simplified without running out of stack.
+ *
+ * To say what the simplification costs, the ZHL-16 compartments are loaded
+ * along both the samples and the segments, and the largest difference
+ * between them at any sample is reported.
+ */
+public class ProfileSimplifier {
+
+	private final Units mUnits;
+	private final float mDepthTolerance, mTimeTolerance;
+
+	/**
+	 * @param units The units of the sample depths
+	 * @param depthTolerance How far a sample's depth may be from the segments
+	 * @param timeTolerance How far a sample's time may be from the segments,
+	 * in seconds
+	 */
+	public ProfileSimplifier(Units units, float depthTolerance, float timeTolerance) {
+		mUnits = units;
+		mDepthTolerance = depthTolerance;
+		mTimeTolerance = timeTolerance;
+	}
+
+	/**
+	 * What's left of a series after simplifying it
+	 */
+	public static class Result {
+		private final int[] mKept;
+		private final float mDepthError;
+		private final double mLoadingError;
+		private final int mWorstCompartment;
+
+		Result(int[] kept, float depthError, double loadingError, int worstCompartment) {
+			mKept = kept;
+			mDepthError = depthError;
+			mLoadingError = loadingError;
+			mWorstCompartment = worstCompartment;
+		}
+
+		/**
+		 * @return The indexes of the samples the segments join, in order. The
+		 * first and last samples are always kept.
+		 */
+		public int[] getKept() { return mKept; }
+
+		public int getSegmentCount() { return Math.max(mKept.length - 1, 0); }
+
+		/**
+		 * @return The largest difference between a sample's depth and the
+		 * depth of the segments at its time
+		 */
+		public float getDepthError() { return mDepthError; }
+
+		/**
+		 * @return The largest difference in the inert gas loading of any
+		 * compartment between the samples and the segments at any sample, in
+		 * ATA
+		 */
+		public double getLoadingError() { return mLoadingError; }
+
+		/**
+		 * @return The compartment the largest loading difference was in,
+		 * counting from 0
+		 */
+		public int getWorstCompartment() { return mWorstCompartment; }
+	}
+
+	/**
+	 * Simplify a series of samples
+	 * @param times The time of each sample in seconds, in increasing order
+	 * @param depths The depth of each sample
+	 * @param count The number of samples to use from the arrays
+	 * @param gas The gas breathed throughout. The loadings are worked out
+	 * from a diver saturated with air at sea level.
+	 * @return The samples to keep and how far the segments they make are from
+	 * the series
+	 */
+	public Result simplify(float[] times, float[] depths, int count, Mix gas) {
+		if(count <= 2) {
+			final int[] kept = new int[count];
+			for(int i = 0; i < count; i++) {
+				kept[i] = i;
+			}
+			return new Result(kept, 0, 0, 0);
+		}
+		final boolean[] keep = new boolean[count];
+		keep[0] = keep[count - 1] = true;
+		int kept = 2;
+
+		// Each pair on the stack is a segment still to be checked
+		int[] stack = new int[32];
+		int top = 0;
+		stack[top ++] = 0;
+		stack[top ++] = count - 1;
+		while(top > 0) {
+			final int last = stack[-- top], first = stack[-- top];
+			final int split = furthest(times, depths, first, last);
+			if(split < 0) {
+				continue;
+			}
+			keep[split] = true;
+			kept ++;
+			if(top + 4 > stack.length) {
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			}
+			stack[top ++] = first;
+			stack[top ++] = split;
+			stack[top ++] = split;
+			stack[top ++] = last;
+		}
+
+		final int[] indexes = new int[kept];
+		for(int i = 0, j = 0; i < count; i++) {
+			if(keep[i]) {
+				indexes[j ++] = i;
+			}
+		}
+		return measure(times, depths, indexes, gas);
+	}
+
+	/**
+	 * Find the sample between two others that's furthest from the segment
+	 * joining them
+	 * @return The index of the sample, or -1 if every sample in between is
+	 * within the tolerance
+	 */
+	private int furthest(float[] times, float[] depths, int first, int last) {
+		final double dx = (times[last] - times[first]) / mTimeTolerance,
+				dy = (depths[last] - depths[first]) / mDepthTolerance,
+				length = Math.hypot(dx, dy);
+		double max = 1;
+		int found = -1;
+		for(int i = first + 1; i < last; i++) {
+			final double px = (times[i] - times[first]) / mTimeTolerance,
+					py = (depths[i] - depths[first]) / mDepthTolerance;
+			final double distance = length == 0? Math.hypot(px, py): Math.abs(px * dy - py * dx) / length;
+			if(distance > max) {
+				max = distance;
+				found = i;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Load the compartments along the samples and along the segments side by
+	 * side and find the largest differences
+	 */
+	private Result measure(float[] times, float[] depths, int[] kept, Mix gas) {
+		final double[] halftimes = Zhl16c.N2_HALFTIMES, heHalftimes = Zhl16c.HE_HALFTIMES;
+		final int compartments = halftimes.length;
+		final double[] n2Rates = new double[compartments], heRates = new double[compartments];
+		for(int c = 0; c < compartments; c++) {
+			n2Rates[c] = AbsDecoAlgorithm.LN2 / halftimes[c];
+			heRates[c] = AbsDecoAlgorithm.LN2 / heHalftimes[c];
+		}
+		final DecayCache n2Decay = new DecayCache(n2Rates), heDecay = new DecayCache(heRates);
+		final double fN2 = gas.getfN2(), fHe = gas.getfHe();
+
+		final double[] rawN2 = new double[compartments], rawHe = new double[compartments],
+				n2 = new double[compartments], he = new double[compartments];
+		Arrays.fill(rawN2, (1 - AbsDecoAlgorithm.WATER_VAPOR_PRESSURE) * AbsDecoAlgorithm.AIR_FN2);
+		System.arraycopy(rawN2, 0, n2, 0, compartments);
+
+		float depthError = 0;
+		double loadingError = 0;
+		int worst = 0;
+		float lastDepth = depths[0];
+		for(int s = 1; s < kept.length; s++) {
+			final int first = kept[s - 1], last = kept[s];
+			final float slope = (depths[last] - depths[first]) / (times[last] - times[first]);
+			for(int i = first + 1; i <= last; i++) {
+				final float depth = depths[first] + slope * (times[i] - times[first]);
+				final float time = (times[i] - times[i - 1]) / 60;
+				depthError = Math.max(depthError, Math.abs(depths[i] - depth));
+				if(time <= 0) {
+					lastDepth = depth;
+					continue;
+				}
+				final double[] n2Factors = n2Decay.factors(time), heFactors = heDecay.factors(time);
+				final double rawStart = inspired(depths[i - 1]), rawRate = (inspired(depths[i]) - rawStart) / time,
+						start = inspired(lastDepth), rate = (inspired(depth) - start) / time;
+				AbsDecoAlgorithm.schreiner(rawN2, n2Rates, n2Factors, rawStart * fN2, rawRate * fN2, time);
+				AbsDecoAlgorithm.schreiner(rawHe, heRates, heFactors, rawStart * fHe, rawRate * fHe, time);
+				AbsDecoAlgorithm.schreiner(n2, n2Rates, n2Factors, start * fN2, rate * fN2, time);
+				AbsDecoAlgorithm.schreiner(he, heRates, heFactors, start * fHe, rate * fHe, time);
+				lastDepth = depth;
+
+				for(int c = 0; c < compartments; c++) {
+					final double error = Math.abs(rawN2[c] + rawHe[c] - n2[c] - he[c]);
+					if(error > loadingError) {
+						loadingError = error;
+						worst = c;
+					}
+				}
+			}
+		}
+		return new Result(kept, depthError, loadingError, worst);
+	}
+
+	/**
+	 * @return The pressure of the gas in the lungs at a depth at sea level
+	 */
+	private double inspired(float depth) {
+		return depth / mUnits.depthPerAtm() + 1 - AbsDecoAlgorithm.WATER_VAPOR_PRESSURE;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,155 @@
+package divestoclimb.lib.scuba;
+
+import java.util.Arrays;
+
+/**
+ * A dive profile with everything each line inherits filled in, kept as
+ * parallel arrays of primitives instead of ProfileItems.
+ *
+ * Lines are appended one at a time, each taking the values it doesn't set
+ * from the line before it the way ProfileItem.merge does, so building one
+ * never changes the ProfileItems it was built from. Gas sources are kept once
+ * each in a table and referred to by their index in it.
+ *
+ * DecoAlgorithm and CnsOtu can run a line straight from here, and the segment
+ * and depth change times a DecoAlgorithm works out are stored back here.
+ */
+public class ResolvedProfile {
+
+	private int mSize = 0;
+	private int[] mDepths, mTimes, mGasSourceIndexes;
+	private byte[] mTimeTypes;
+	private float[] mSegtimes, mDepthChangeTimes;
+
+	// Every gas source a line has used, in the order they first came up
+	private GasSource[] mGasSources = new GasSource[4];
+	private int mGasSourceCount = 0;
+
+	public ResolvedProfile() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity The number of lines to make room for up front
+	 */
+	public ResolvedProfile(int capacity) {
+		capacity = Math.max(capacity, 1);
+		mDepths = new int[capacity];
+		mTimes = new int[capacity];
+		mGasSourceIndexes = new int[capacity];
+		mTimeTypes = new byte[capacity];
+		mSegtimes = new float[capacity];
+		mDepthChangeTimes = new float[capacity];
+	}
+
+	/**
+	 * @return The number of lines
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Add a line to the end
+	 * @param item The line to add. Values it inherits come from the last line
+	 * added.
+	 * @return The index of the new line
+	 */
+	public int append(ProfileItem item) {
+		final int i = mSize;
+		if(i == mDepths.length) {
+			final int capacity = i * 2;
+			mDepths = Arrays.copyOf(mDepths, capacity);
+			mTimes = Arrays.copyOf(mTimes, capacity);
+			mGasSourceIndexes = Arrays.copyOf(mGasSourceIndexes, capacity);
+			mTimeTypes = Arrays.copyOf(mTimeTypes, capacity);
+			mSegtimes = Arrays.copyOf(mSegtimes, capacity);
+			mDepthChangeTimes = Arrays.copyOf(mDepthChangeTimes, capacity);
+		}
+		final int depth = item.getDepth(), time = item.getTime(), timeType = item.getTimeType();
+		final GasSource gasSource = item.getGasSource();
+		mDepths[i] = depth != ProfileItem.INHERIT_DEPTH || i == 0? depth: mDepths[i - 1];
+		mTimes[i] = time != ProfileItem.INHERIT_TIME || i == 0? time: mTimes[i - 1];
+		mTimeTypes[i] = (byte)(timeType != ProfileItem.INHERIT_TIME_TYPE || i == 0? timeType: mTimeTypes[i - 1]);
+		mGasSourceIndexes[i] = gasSource != ProfileItem.INHERIT_GASSOURCE? indexOf(gasSource):
+				i == 0? -1: mGasSourceIndexes[i - 1];
+		mSegtimes[i] = -1;
+		mDepthChangeTimes[i] = -1;
+		mSize = i + 1;
+		return i;
+	}
+
+	/**
+	 * Find a gas source in the table, adding it if it isn't there
+	 */
+	private int indexOf(GasSource source) {
+		for(int g = 0; g < mGasSourceCount; g++) {
+			if(mGasSources[g] == source) {
+				return g;
+			}
+		}
+		if(mGasSourceCount == mGasSources.length) {
+			mGasSources = Arrays.copyOf(mGasSources, mGasSourceCount * 2);
+		}
+		mGasSources[mGasSourceCount] = source;
+		return mGasSourceCount ++;
+	}
+
+	/**
+	 * Drop lines from the end
+	 * @param size The number of lines to keep
+	 */
+	public void truncate(int size) {
+		mSize = Math.max(Math.min(mSize, size), 0);
+	}
+
+	public int getDepth(int i) { return mDepths[i]; }
+	public int getTime(int i) { return mTimes[i]; }
+	public int getTimeType(int i) { return mTimeTypes[i]; }
+
+	/**
+	 * @return The index of a line's gas source in the table, or -1 if no line
+	 * up to it has set one
+	 */
+	public int getGasSourceIndex(int i) { return mGasSourceIndexes[i]; }
+
+	public GasSource getGasSource(int i) {
+		final int g = mGasSourceIndexes[i];
+		return g < 0? ProfileItem.INHERIT_GASSOURCE: mGasSources[g];
+	}
+
+	/**
+	 * @return A gas source from the table
+	 */
+	public GasSource getGasSourceAt(int index) { return mGasSources[index]; }
+	public int getGasSourceCount() { return mGasSourceCount; }
+
+	public float getSegtime(int i) { return mSegtimes[i]; }
+	public void setSegtime(int i, float segtime) { mSegtimes[i] = segtime; }
+	public float getDepthChangeTime(int i) { return mDepthChangeTimes[i]; }
+	public void setDepthChangeTime(int i, float depthChangeTime) { mDepthChangeTimes[i] = depthChangeTime; }
+
+	/**
+	 * @return true if a line still has a value no line up to it has set
+	 */
+	public boolean isRaw(int i) {
+		return mDepths[i] == ProfileItem.INHERIT_DEPTH || mTimes[i] == ProfileItem.INHERIT_TIME
+				|| mTimeTypes[i] == ProfileItem.INHERIT_TIME_TYPE || mGasSourceIndexes[i] < 0;
+	}
+
+	/**
+	 * Copy a line's values into a ProfileItem
+	 * @param i The index of the line
+	 * @param item The item to set the depth, time, time type, gas source,
+	 * segment time and depth change time of
+	 * @return item
+	 */
+	public ProfileItem copyTo(int i, ProfileItem item) {
+		return item.setDepth(mDepths[i])
+				.setTime(mTimes[i])
+				.setTimeType(mTimeTypes[i])
+				.setGasSource(getGasSource(i))
+				.setSegtime(mSegtimes[i])
+				.setDepthChangeTime(mDepthChangeTimes[i]);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,83 @@
+package divestoclimb.lib.scuba;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bound on how long a deco run may go on: a deadline, a cancel flag another
+ * thread can set, and the interrupt flag of the thread doing the run.
+ *
+ * Runs check their limit between profile lines and between the stops of an
+ * ascent, so a plan that would take a long time to work out gives up soon
+ * after the limit is passed instead of holding its thread.
+ */
+public class RunLimit {
+
+	/**
+	 * Thrown from inside a DecoAlgorithm when its limit is passed partway
+	 * through working out an ascent. The algorithm's state is left somewhere
+	 * in the middle of the ascent, so it has to be reloaded before it's used
+	 * again.
+	 */
+	public static class ExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public ExceededException(String message) {
+			super(message);
+		}
+	}
+
+	// The deadline by System.nanoTime, only meaningful if mHasDeadline
+	private final long mDeadline;
+	private final boolean mHasDeadline;
+	private volatile boolean mCancelled = false;
+
+	/**
+	 * Make a limit with no deadline, which only ends when it's cancelled or
+	 * the thread is interrupted
+	 */
+	public RunLimit() {
+		mDeadline = 0;
+		mHasDeadline = false;
+	}
+
+	/**
+	 * Make a limit with a deadline
+	 * @param timeout How long from now the deadline is
+	 * @param unit The unit of timeout
+	 */
+	public RunLimit(long timeout, TimeUnit unit) {
+		mDeadline = System.nanoTime() + unit.toNanos(timeout);
+		mHasDeadline = true;
+	}
+
+	/**
+	 * Ask any run using this limit to stop. This may be called from any
+	 * thread.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @return true if this limit has been cancelled, its deadline has passed,
+	 * or the current thread has been interrupted
+	 */
+	public boolean isExceeded() {
+		return mCancelled || mHasDeadline && System.nanoTime() - mDeadline >= 0
+				|| Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * @throws ExceededException if this limit has been exceeded
+	 */
+	public void check() {
+		if(isExceeded()) {
+			throw new ExceededException(mCancelled? "Cancelled":
+				Thread.currentThread().isInterrupted()? "Interrupted": "Deadline passed");
+		}
+	}
+}
\ No newline at end of file
@@ -24,11 +24,34 @@ public class Setpoint extends GasSource {
 		mDiluent = diluent;
 	}
 
+	// Constructor for an interned setpoint on an interned diluent
+	Setpoint(float po2, Mix diluent, int code, int index) {
+		super(code, index);
+		mpO2 = po2;
+		mDiluent = diluent;
+	}
+
+	/**
+	 * Get the interned Setpoint for a setpoint and diluent
+	 * @param po2 The setpoint, rounded to hundredths of an ATA
+	 * @param diluent The diluent. A missing diluent is taken as nitrogen.
+	 * @return The one shared Setpoint, which can't be changed
+	 */
+	public static Setpoint of(float po2, Mix diluent) {
+		final int code = diluent == null? GasTable.pack(0, 0, po2):
+			GasTable.pack(diluent.getfO2(), diluent.getfHe(), po2);
+		if(code >>> 20 == 0) {
+			throw new IllegalArgumentException("Setpoint rounds to 0: " + po2);
+		}
+		return (Setpoint)GasTable.get(code);
+	}
+
 	public float getPo2() {
 		return mpO2;
 	}
 
 	public void setPo2(float po2) {
+		checkMutable();
 		mpO2 = po2;
 	}
 
@@ -37,6 +60,7 @@ public class Setpoint extends GasSource {
 	}
 
 	public void setDiluent(Mix diluent) {
+		checkMutable();
 		mDiluent = diluent;
 	}
 
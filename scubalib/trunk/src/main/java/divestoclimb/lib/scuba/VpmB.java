@@ -0,0 +1,710 @@
+package divestoclimb.lib.scuba;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An implementation of the Varying Permeability Model with Boyle's law
+ * compensation (VPM-B), following Erik Baker's reference implementation.
+ *
+ * VPM-B finds its stops by iterating: it plans an ascent, measures how long
+ * the diver spends decompressing (the "phase volume time"), relaxes the
+ * allowed supersaturation gradients to match, and plans again until the phase
+ * volume time stops changing. This class bounds the number of iterations. The
+ * schedule of the last iteration is the one returned; it is never planned a
+ * second time.
+ *
+ * Time to surface queries, which a dive computer makes over and over as the
+ * dive goes on, start from the phase volume times the last query converged
+ * on, so they usually settle on the first pass. Planned ascents always start
+ * from the initial gradients, so a plan doesn't depend on what was planned or
+ * asked before it.
+ *
+ * Ascents to a shallower profile line in the middle of the dive use the
+ * initial allowable gradients, without iterating. Only the final ascent in
+ * ascendToSurface() runs the critical volume iteration.
+ *
+ * The adjusted critical radii that carry the effect of one dive over to the
+ * next are kept in the algorithm-specific part of the state, so repetitive
+ * dives work through getState and loadState like any other algorithm.
+ */
+public class VpmB extends AbsDecoAlgorithm {
+
+	private static final double PASCALS_PER_ATA = 101325;
+
+	// Surface tension and skin compression of the bubble nuclei, in N/m
+	private static final double GAMMA = 0.0179;
+	private static final double GAMMA_C = 0.257;
+
+	// The critical volume parameter lambda, 7500 fsw-min converted to Pa-min
+	private static final double LAMBDA = 7500 / 33.0 * PASCALS_PER_ATA;
+
+	// The gradient in ATA beyond which nuclei become impermeable to gas
+	private static final double GRADIENT_ONSET_OF_IMPERMEABILITY = 8.2;
+
+	// The time constant for regeneration of crushed nuclei, in minutes
+	private static final double REGENERATION_TIME_CONSTANT = 20160;
+
+	// The partial pressure of gases other than inert gases in the tissues
+	// (102 mmHg), in ATA
+	private static final double OTHER_GASES_PRESSURE = 102 / 760.0;
+
+	/**
+	 * The default critical radius for nitrogen nuclei, in microns
+	 */
+	public static final double DEFAULT_CRITICAL_RADIUS_N2 = 0.55;
+	/**
+	 * The default critical radius for helium nuclei, in microns
+	 */
+	public static final double DEFAULT_CRITICAL_RADIUS_HE = 0.45;
+
+	// Critical radius multipliers for each conservatism level
+	private static final double[] CONSERVATISM = { 1.0, 1.05, 1.12, 1.22, 1.35 };
+
+	/**
+	 * The default limit on critical volume iterations per ascent
+	 */
+	public static final int DEFAULT_MAX_ITERATIONS = 10;
+
+	// A schedule has converged when no compartment's phase volume time
+	// changes by more than this many minutes between iterations
+	private static final double CONVERGENCE = 1;
+
+	// These are set by resetConfig, which the superclass constructor calls, so
+	// they must not have initializers.
+	private int mConservatism, mMaxIterations;
+
+	// Critical radii in meters. The initial radii come from the configuration;
+	// the adjusted radii are what's left after the last dive and surface
+	// interval.
+	private final double[] mAdjustedRadiusN2, mAdjustedRadiusHe;
+
+	// The largest crushing pressure each compartment's nuclei have seen this
+	// dive, in ATA
+	private final double[] mMaxCrushingN2, mMaxCrushingHe;
+
+	// The largest actual supersaturation gradient seen at a stop this dive, in
+	// ATA, and a copy saved with the snapshot so only the iteration that's
+	// kept counts
+	private final double[] mMaxActualGradient, mSavedMaxActualGradient;
+
+	// Gradients for the ascent in progress, in ATA
+	private final double[] mInitialGradientN2, mInitialGradientHe;
+	private final double[] mAdjustedCrushingN2, mAdjustedCrushingHe;
+	private final double[] mAllowableGradientN2, mAllowableGradientHe;
+	private final double[] mDecoGradientN2, mDecoGradientHe;
+
+	// The depth that mDecoGradient* were computed for, or -1 if they need to
+	// be recomputed
+	private int mDecoGradientDepth = -1;
+
+	// The first stop of the ascent in progress, which Boyle's law
+	// compensation is measured from. -1 if no stop has been made yet.
+	private int mFirstStop = -1;
+
+	// Phase volume times of the iteration in progress and of the one before
+	private final double[] mPhaseVolumeTime, mLastPhaseVolumeTime;
+
+	// The phase volume times the last time to surface query converged on,
+	// which the next query starts from. mQueryWarmStart is false until a
+	// query has made stops since the state was loaded or the dive began.
+	private final double[] mQueryPhaseVolumeTime;
+	private boolean mQuery = false, mQueryWarmStart = false;
+
+	// Scratch space for the total gas tension at the start of a depth change
+	private final double[] mStartTension;
+
+	// Convergence of the last ascent
+	private int mIterations = 0;
+	private boolean mConverged = true;
+
+	// What getTimeToSurface's trial ascent changes, saved by saveAhead: the
+	// initial, adjusted crushing, and allowable gradients, one block of
+	// compartments each
+	private final double[] mAhead;
+	private int mAheadFirstStop, mAheadIterations;
+	private boolean mAheadConverged;
+
+	// The same gradients and first stop, saved by updateTolerances while a
+	// ceiling is worked out
+	private final double[] mTolerances;
+	private int mTolerancesFirstStop;
+
+	public VpmB(Units units) {
+		super(units, Zhl16c.N2_HALFTIMES, Zhl16c.HE_HALFTIMES);
+		final int n = mCompartments;
+		mAdjustedRadiusN2 = new double[n];
+		mAdjustedRadiusHe = new double[n];
+		mMaxCrushingN2 = new double[n];
+		mMaxCrushingHe = new double[n];
+		mMaxActualGradient = new double[n];
+		mSavedMaxActualGradient = new double[n];
+		mInitialGradientN2 = new double[n];
+		mInitialGradientHe = new double[n];
+		mAdjustedCrushingN2 = new double[n];
+		mAdjustedCrushingHe = new double[n];
+		mAllowableGradientN2 = new double[n];
+		mAllowableGradientHe = new double[n];
+		mDecoGradientN2 = new double[n];
+		mDecoGradientHe = new double[n];
+		mPhaseVolumeTime = new double[n];
+		mLastPhaseVolumeTime = new double[n];
+		mQueryPhaseVolumeTime = new double[n];
+		mStartTension = new double[n];
+		mAhead = new double[6 * n];
+		mTolerances = new double[6 * n];
+		resetBubbles();
+	}
+
+	/**
+	 * @return The conservatism level, from 0 to 4
+	 */
+	public int getConservatism() { return mConservatism; }
+
+	/**
+	 * Set the conservatism level. Higher levels start from larger critical
+	 * radii. This takes effect from the next call to loadState.
+	 * @param conservatism The level, from 0 (least conservative) to 4
+	 */
+	public void setConservatism(int conservatism) {
+		mConservatism = Math.max(0, Math.min(conservatism, CONSERVATISM.length - 1));
+	}
+
+	public int getMaxIterations() { return mMaxIterations; }
+
+	/**
+	 * Set the maximum number of critical volume iterations per ascent. If the
+	 * schedule hasn't converged by then, the schedule of the last iteration is
+	 * used.
+	 * @param iterations The limit, at least 1
+	 */
+	public void setMaxIterations(int iterations) {
+		mMaxIterations = Math.max(iterations, 1);
+	}
+
+	/**
+	 * @return The number of critical volume iterations the last ascent took
+	 */
+	public int getIterations() { return mIterations; }
+
+	/**
+	 * @return true if the last ascent converged within the iteration limit
+	 */
+	public boolean isConverged() { return mConverged; }
+
+	private double initialRadiusN2() {
+		return DEFAULT_CRITICAL_RADIUS_N2 * CONSERVATISM[mConservatism] * 1e-6;
+	}
+
+	private double initialRadiusHe() {
+		return DEFAULT_CRITICAL_RADIUS_HE * CONSERVATISM[mConservatism] * 1e-6;
+	}
+
+	/**
+	 * Reset the critical radii to a diver who hasn't been diving
+	 */
+	private void resetBubbles() {
+		final double n2 = initialRadiusN2(), he = initialRadiusHe();
+		for(int c = 0; c < mCompartments; c++) {
+			mAdjustedRadiusN2[c] = n2;
+			mAdjustedRadiusHe[c] = he;
+			mMaxCrushingN2[c] = mMaxCrushingHe[c] = 0;
+			mMaxActualGradient[c] = 0;
+		}
+		mFirstStop = -1;
+	}
+
+	@Override
+	protected void resetState() {
+		super.resetState();
+		// The superclass constructor gets here before our arrays exist
+		if(mAdjustedRadiusN2 != null) {
+			resetBubbles();
+		}
+	}
+
+	/**
+	 * Solve A r^3 - B r^2 - C = 0 for the radius r of a nucleus, by bisection
+	 * between two radii that bracket the root.
+	 */
+	private static double radiusRoot(double a, double b, double c, double low, double high) {
+		if(low > high) {
+			final double t = low;
+			low = high;
+			high = t;
+		}
+		for(int i = 0; i < 100 && high - low > 1e-15; i++) {
+			final double mid = (low + high) / 2;
+			if(a * mid * mid * mid - b * mid * mid - c < 0) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return (low + high) / 2;
+	}
+
+	/**
+	 * Compute the crushing pressure on a compartment's nuclei at the end of a
+	 * descent.
+	 * @param startAmbient Ambient pressure at the start of the descent in ATA
+	 * @param startTension Total gas tension at the start of the descent in ATA
+	 * @param endAmbient Ambient pressure at the end of the descent in ATA
+	 * @param endTension Total gas tension at the end of the descent in ATA
+	 * @param radius The critical radius of the nuclei in meters
+	 * @return The crushing pressure in ATA
+	 */
+	private static double crushingPressure(double startAmbient, double startTension, double endAmbient, double endTension, double radius) {
+		final double endGradient = endAmbient - endTension;
+		if(endGradient <= GRADIENT_ONSET_OF_IMPERMEABILITY) {
+			return endGradient;
+		}
+		// Past the onset of impermeability the gas inside the nuclei can't
+		// escape, so they are compressed according to Boyle's law instead.
+		// The gradient changes nearly linearly during a descent, which is
+		// close enough to find where that happened.
+		final double startGradient = startAmbient - startTension;
+		double onsetAmbient = startAmbient, onsetTension = startTension;
+		if(startGradient < GRADIENT_ONSET_OF_IMPERMEABILITY) {
+			final double f = (GRADIENT_ONSET_OF_IMPERMEABILITY - startGradient) / (endGradient - startGradient);
+			onsetAmbient += f * (endAmbient - startAmbient);
+			onsetTension += f * (endTension - startTension);
+		}
+		final double skin = 2 * (GAMMA_C - GAMMA);
+		final double onsetRadius = 1 / (GRADIENT_ONSET_OF_IMPERMEABILITY * PASCALS_PER_ATA / skin + 1 / radius);
+		final double onsetRadius3 = onsetRadius * onsetRadius * onsetRadius;
+		final double a = (endAmbient - onsetAmbient + onsetTension) * PASCALS_PER_ATA + skin / onsetRadius;
+		final double c = onsetTension * PASCALS_PER_ATA * onsetRadius3;
+		final double endRadius = radiusRoot(a, skin, c, skin / a, onsetRadius);
+		return GRADIENT_ONSET_OF_IMPERMEABILITY + endAmbient - onsetAmbient
+				+ onsetTension * (1 - onsetRadius3 / (endRadius * endRadius * endRadius));
+	}
+
+	@Override
+	protected float travel(int depth, float rate) {
+		final int startDepth = mDepth;
+		if(depth > startDepth) {
+			for(int c = 0; c < mCompartments; c++) {
+				mStartTension[c] = mN2[c] + mHe[c] + OTHER_GASES_PRESSURE;
+			}
+		}
+		final float time = super.travel(depth, rate);
+		if(depth > startDepth) {
+			final double startAmbient = pressureAtDepth(startDepth), endAmbient = pressureAtDepth(depth);
+			for(int c = 0; c < mCompartments; c++) {
+				final double endTension = mN2[c] + mHe[c] + OTHER_GASES_PRESSURE;
+				mMaxCrushingN2[c] = Math.max(mMaxCrushingN2[c],
+						crushingPressure(startAmbient, mStartTension[c], endAmbient, endTension, mAdjustedRadiusN2[c]));
+				mMaxCrushingHe[c] = Math.max(mMaxCrushingHe[c],
+						crushingPressure(startAmbient, mStartTension[c], endAmbient, endTension, mAdjustedRadiusHe[c]));
+			}
+		}
+		return time;
+	}
+
+	/**
+	 * Account for regeneration of crushed nuclei over the dive so far, and
+	 * compute the initial allowable gradients from the regenerated radii.
+	 */
+	private void computeInitialGradients() {
+		final double regeneration = Math.exp(-mRuntime / REGENERATION_TIME_CONSTANT);
+		for(int c = 0; c < mCompartments; c++) {
+			mInitialGradientN2[c] = regenerate(mMaxCrushingN2[c], mAdjustedRadiusN2[c], regeneration, mAdjustedCrushingN2, c);
+			mInitialGradientHe[c] = regenerate(mMaxCrushingHe[c], mAdjustedRadiusHe[c], regeneration, mAdjustedCrushingHe, c);
+			mAllowableGradientN2[c] = mInitialGradientN2[c];
+			mAllowableGradientHe[c] = mInitialGradientHe[c];
+		}
+		mFirstStop = -1;
+		mDecoGradientDepth = -1;
+	}
+
+	/**
+	 * Work out one gas's regenerated radius for a compartment
+	 * @param crushing The maximum crushing pressure in ATA
+	 * @param radius The critical radius at the start of the dive, in meters
+	 * @param regeneration The regeneration factor for the dive time so far
+	 * @param adjustedCrushing The array to store the adjusted crushing
+	 * pressure in
+	 * @param c The compartment
+	 * @return The initial allowable gradient in ATA
+	 */
+	private static double regenerate(double crushing, double radius, double regeneration, double[] adjustedCrushing, int c) {
+		double regenerated = radius;
+		adjustedCrushing[c] = 0;
+		if(crushing > 0) {
+			final double crushingPa = crushing * PASCALS_PER_ATA;
+			final double endRadius = 1 / (crushingPa / (2 * (GAMMA_C - GAMMA)) + 1 / radius);
+			regenerated = radius + (endRadius - radius) * regeneration;
+			final double ratio = endRadius * (radius - regenerated) / (regenerated * (radius - endRadius));
+			adjustedCrushing[c] = crushing * ratio;
+		}
+		return 2 * GAMMA * (GAMMA_C - GAMMA) / (regenerated * GAMMA_C) / PASCALS_PER_ATA;
+	}
+
+	/**
+	 * Relax the allowable gradients to match a set of phase volume times
+	 * @param phaseVolumeTime The phase volume time of each compartment
+	 */
+	private void criticalVolume(double[] phaseVolumeTime) {
+		for(int c = 0; c < mCompartments; c++) {
+			mAllowableGradientN2[c] = criticalVolumeGradient(mInitialGradientN2[c], mAdjustedCrushingN2[c], phaseVolumeTime[c]);
+			mAllowableGradientHe[c] = criticalVolumeGradient(mInitialGradientHe[c], mAdjustedCrushingHe[c], phaseVolumeTime[c]);
+		}
+		mDecoGradientDepth = -1;
+	}
+
+	private static double criticalVolumeGradient(double initialGradient, double adjustedCrushing, double phaseVolumeTime) {
+		final double b = initialGradient * PASCALS_PER_ATA + LAMBDA * GAMMA / (GAMMA_C * phaseVolumeTime);
+		final double c = GAMMA * GAMMA * LAMBDA * adjustedCrushing * PASCALS_PER_ATA / (GAMMA_C * GAMMA_C * phaseVolumeTime);
+		return (b + Math.sqrt(b * b - 4 * c)) / 2 / PASCALS_PER_ATA;
+	}
+
+	/**
+	 * Compute the phase volume time each compartment accumulates off-gassing
+	 * at the surface after the ascent just planned, and add it to the time
+	 * spent decompressing.
+	 * @param decoTime The time spent in the decompression zone
+	 */
+	private void computePhaseVolumeTime(double decoTime) {
+		final double surfaceN2 = (mSurfacePressure - WATER_VAPOR_PRESSURE) * AIR_FN2;
+		for(int c = 0; c < mCompartments; c++) {
+			final double n2 = mN2[c], he = mHe[c];
+			final double kN2 = mN2Rates[c], kHe = mHeRates[c];
+			double surfaceTime = 0;
+			if(n2 > surfaceN2) {
+				surfaceTime = (he / kHe + (n2 - surfaceN2) / kN2) / (he + n2 - surfaceN2);
+			} else if(he + n2 >= surfaceN2 && he > 0) {
+				final double zeroGradient = Math.log((surfaceN2 - n2) / he) / (kN2 - kHe);
+				final double integral = he / kHe * (1 - Math.exp(-kHe * zeroGradient))
+						+ (n2 - surfaceN2) / kN2 * (1 - Math.exp(-kN2 * zeroGradient));
+				surfaceTime = integral / (he + n2 - surfaceN2);
+			}
+			mPhaseVolumeTime[c] = decoTime + surfaceTime;
+		}
+	}
+
+	/**
+	 * Apply Boyle's law compensation to the allowable gradients for a stop
+	 * shallower than the first stop.
+	 * @param depth The depth of the stop
+	 */
+	private void computeDecoGradients(int depth) {
+		final double firstStopPa = pressureAtDepth(mFirstStop) * PASCALS_PER_ATA,
+				nextStopPa = pressureAtDepth(depth) * PASCALS_PER_ATA;
+		final double expansion = Math.cbrt(firstStopPa / nextStopPa);
+		for(int c = 0; c < mCompartments; c++) {
+			mDecoGradientN2[c] = boyle(mAllowableGradientN2[c], firstStopPa, nextStopPa, expansion);
+			mDecoGradientHe[c] = boyle(mAllowableGradientHe[c], firstStopPa, nextStopPa, expansion);
+		}
+		mDecoGradientDepth = depth;
+	}
+
+	private static double boyle(double gradient, double firstStopPa, double nextStopPa, double expansion) {
+		final double radius = 2 * GAMMA / (gradient * PASCALS_PER_ATA);
+		final double c = (firstStopPa + 2 * GAMMA / radius) * radius * radius * radius;
+		final double newRadius = radiusRoot(nextStopPa, -2 * GAMMA, c, radius, radius * expansion);
+		return 2 * GAMMA / newRadius / PASCALS_PER_ATA;
+	}
+
+	@Override
+	protected double toleratedPressure(int c, double pN2, double pHe, int depth) {
+		final double[] gradientN2, gradientHe;
+		if(mFirstStop < 0 || depth >= mFirstStop) {
+			gradientN2 = mAllowableGradientN2;
+			gradientHe = mAllowableGradientHe;
+		} else {
+			if(depth != mDecoGradientDepth) {
+				computeDecoGradients(depth);
+			}
+			gradientN2 = mDecoGradientN2;
+			gradientHe = mDecoGradientHe;
+		}
+		final double p = pN2 + pHe;
+		if(p <= 0) {
+			return OTHER_GASES_PRESSURE - Math.min(gradientN2[c], gradientHe[c]);
+		}
+		final double gradient = (gradientN2[c] * pN2 + gradientHe[c] * pHe) / p;
+		return p + OTHER_GASES_PRESSURE - gradient;
+	}
+
+	@Override
+	protected void beginStop(int depth) {
+		if(mFirstStop < 0) {
+			mFirstStop = depth;
+			mDecoGradientDepth = -1;
+		}
+		final double ambient = pressureAtDepth(depth);
+		for(int c = 0; c < mCompartments; c++) {
+			mMaxActualGradient[c] = Math.max(mMaxActualGradient[c],
+					mN2[c] + mHe[c] + OTHER_GASES_PRESSURE - ambient);
+		}
+	}
+
+	@Override
+	protected int getFirstStop() {
+		return mFirstStop;
+	}
+
+	@Override
+	protected void setFirstStop(int depth) {
+		mFirstStop = depth;
+		mDecoGradientDepth = -1;
+	}
+
+	@Override
+	protected ProfileItem[] runLine(int depth, int time, int timeType, GasSource source) {
+		if(depth < mDepth) {
+			computeInitialGradients();
+		}
+		return super.runLine(depth, time, timeType, source);
+	}
+
+	@Override
+	protected void updateTolerances() {
+		saveGradients(mTolerances);
+		mTolerancesFirstStop = mFirstStop;
+		computeInitialGradients();
+	}
+
+	@Override
+	protected void restoreTolerances() {
+		restoreGradients(mTolerances);
+		mFirstStop = mTolerancesFirstStop;
+	}
+
+	/**
+	 * Copy the initial, adjusted crushing, and allowable gradients into an
+	 * array of six blocks of compartments
+	 */
+	private void saveGradients(double[] to) {
+		final int n = mCompartments;
+		System.arraycopy(mInitialGradientN2, 0, to, 0, n);
+		System.arraycopy(mInitialGradientHe, 0, to, n, n);
+		System.arraycopy(mAdjustedCrushingN2, 0, to, 2 * n, n);
+		System.arraycopy(mAdjustedCrushingHe, 0, to, 3 * n, n);
+		System.arraycopy(mAllowableGradientN2, 0, to, 4 * n, n);
+		System.arraycopy(mAllowableGradientHe, 0, to, 5 * n, n);
+	}
+
+	private void restoreGradients(double[] from) {
+		final int n = mCompartments;
+		System.arraycopy(from, 0, mInitialGradientN2, 0, n);
+		System.arraycopy(from, n, mInitialGradientHe, 0, n);
+		System.arraycopy(from, 2 * n, mAdjustedCrushingN2, 0, n);
+		System.arraycopy(from, 3 * n, mAdjustedCrushingHe, 0, n);
+		System.arraycopy(from, 4 * n, mAllowableGradientN2, 0, n);
+		System.arraycopy(from, 5 * n, mAllowableGradientHe, 0, n);
+		// The deco gradients are worked out again from the ones above
+		mDecoGradientDepth = -1;
+	}
+
+	@Override
+	protected void ascendToSurface() {
+		computeInitialGradients();
+		saveSnapshot();
+		final float ascentStart = mRuntime;
+		final int n = mCompartments;
+
+		final boolean warmStart = mQuery && mQueryWarmStart;
+		if(warmStart) {
+			// Start from the gradients the last query converged on
+			System.arraycopy(mQueryPhaseVolumeTime, 0, mLastPhaseVolumeTime, 0, n);
+			criticalVolume(mLastPhaseVolumeTime);
+		}
+		mConverged = false;
+		int iteration = 0;
+		float lastDecoTime = -1, twoAgoDecoTime = -1;
+		while(true) {
+			iteration ++;
+			if(iteration > 1) {
+				restoreSnapshot();
+			}
+			mFirstStop = -1;
+			ascend(0);
+			if(getStopCount() == 0) {
+				// No stops, so there's nothing for the iteration to relax
+				mConverged = true;
+				break;
+			}
+			// The deco zone is taken to start when the ascent does, which
+			// slightly overstates the phase volume time and errs on the side
+			// of conservatism.
+			final float decoTime = mRuntime - ascentStart;
+			computePhaseVolumeTime(decoTime);
+			boolean converged = warmStart || iteration > 1;
+			for(int c = 0; c < n && converged; c++) {
+				converged = Math.abs(mPhaseVolumeTime[c] - mLastPhaseVolumeTime[c]) <= CONVERGENCE;
+			}
+			// Rounding stops to whole minutes can leave the schedule flipping
+			// between two lengths forever. Once that happens, settle on the
+			// longer one.
+			if(! converged && Math.abs(decoTime - twoAgoDecoTime) < 0.01f && decoTime >= lastDecoTime) {
+				converged = true;
+			}
+			twoAgoDecoTime = lastDecoTime;
+			lastDecoTime = decoTime;
+			System.arraycopy(mPhaseVolumeTime, 0, mLastPhaseVolumeTime, 0, n);
+			if(converged || iteration >= mMaxIterations) {
+				mConverged = converged;
+				if(mQuery) {
+					System.arraycopy(mPhaseVolumeTime, 0, mQueryPhaseVolumeTime, 0, n);
+					mQueryWarmStart = true;
+				}
+				break;
+			}
+			criticalVolume(mPhaseVolumeTime);
+		}
+		mIterations = iteration;
+	}
+
+	@Override
+	protected void saveSnapshot() {
+		super.saveSnapshot();
+		System.arraycopy(mMaxActualGradient, 0, mSavedMaxActualGradient, 0, mCompartments);
+	}
+
+	@Override
+	protected void restoreSnapshot() {
+		super.restoreSnapshot();
+		System.arraycopy(mSavedMaxActualGradient, 0, mMaxActualGradient, 0, mCompartments);
+	}
+
+	@Override
+	public void surfaceInterval(int altitude, int time, GasSource source) {
+		// Nuclei that were pushed past the allowed gradient during the last
+		// dive come out of it larger than the initial radius, which makes the
+		// next dive more conservative. The excess decays away over the surface
+		// interval, so splitting an interval in two gives the same result.
+		final double initialN2 = initialRadiusN2(), initialHe = initialRadiusHe();
+		final double regeneration = Math.exp(-time / REGENERATION_TIME_CONSTANT);
+		final double skin = 2 * GAMMA * (GAMMA_C - GAMMA);
+		for(int c = 0; c < mCompartments; c++) {
+			double excessN2 = mAdjustedRadiusN2[c] - initialN2, excessHe = mAdjustedRadiusHe[c] - initialHe;
+			final double maxGradient = mMaxActualGradient[c];
+			if(maxGradient > 0) {
+				final double radius = skin / (maxGradient * PASCALS_PER_ATA * GAMMA_C);
+				excessN2 = Math.max(excessN2, initialN2 - radius);
+				excessHe = Math.max(excessHe, initialHe - radius);
+			}
+			mAdjustedRadiusN2[c] = initialN2 + Math.max(excessN2, 0) * regeneration;
+			mAdjustedRadiusHe[c] = initialHe + Math.max(excessHe, 0) * regeneration;
+			mMaxActualGradient[c] = 0;
+		}
+		super.surfaceInterval(altitude, time, source);
+	}
+
+	@Override
+	protected void beginDive() {
+		for(int c = 0; c < mCompartments; c++) {
+			mMaxCrushingN2[c] = mMaxCrushingHe[c] = 0;
+		}
+		mFirstStop = -1;
+		mQueryWarmStart = false;
+	}
+
+	@Override
+	public void loadState(byte[] state) {
+		super.loadState(state);
+		// The last query may have been made from a different dive, so it's no
+		// place to warm-start from
+		mQueryWarmStart = false;
+	}
+
+	@Override
+	public float getTimeToSurface(float time) {
+		mQuery = true;
+		try {
+			return super.getTimeToSurface(time);
+		} finally {
+			mQuery = false;
+		}
+	}
+
+	@Override
+	protected void saveAhead() {
+		super.saveAhead();
+		saveGradients(mAhead);
+		mAheadFirstStop = mFirstStop;
+		mAheadIterations = mIterations;
+		mAheadConverged = mConverged;
+	}
+
+	@Override
+	protected void restoreAhead() {
+		super.restoreAhead();
+		restoreGradients(mAhead);
+		mFirstStop = mAheadFirstStop;
+		mIterations = mAheadIterations;
+		mConverged = mAheadConverged;
+	}
+
+	@Override
+	protected int getAlgorithmId() {
+		return DecoState.ALGORITHM_VPMB;
+	}
+
+	@Override
+	protected int getExtraStateSize() {
+		return 8 * 5 * mCompartments + 4;
+	}
+
+	@Override
+	protected void writeExtraState(ByteBuffer state) {
+		// One value at a time rather than through a DoubleBuffer view, so
+		// getTimeToSurface can save the state without allocating
+		put(state, mAdjustedRadiusN2);
+		put(state, mAdjustedRadiusHe);
+		put(state, mMaxActualGradient);
+		put(state, mMaxCrushingN2);
+		put(state, mMaxCrushingHe);
+		state.putInt(mFirstStop);
+	}
+
+	@Override
+	protected void readExtraState(ByteBuffer state) {
+		get(state, mAdjustedRadiusN2);
+		get(state, mAdjustedRadiusHe);
+		get(state, mMaxActualGradient);
+		get(state, mMaxCrushingN2);
+		get(state, mMaxCrushingHe);
+		mFirstStop = state.getInt();
+		mDecoGradientDepth = -1;
+	}
+
+	private static void put(ByteBuffer state, double[] values) {
+		for(int i = 0; i < values.length; i++) {
+			state.putDouble(values[i]);
+		}
+	}
+
+	private static void get(ByteBuffer state, double[] values) {
+		for(int i = 0; i < values.length; i++) {
+			values[i] = state.getDouble();
+		}
+	}
+
+	@Override
+	protected void resetConfig() {
+		super.resetConfig();
+		mConservatism = 0;
+		mMaxIterations = DEFAULT_MAX_ITERATIONS;
+	}
+
+	@Override
+	protected void readConfig(ByteBuffer config) {
+		super.readConfig(config);
+		setConservatism(config.get());
+		setMaxIterations(config.get());
+	}
+
+	@Override
+	protected void writeConfig(ByteBuffer config) {
+		super.writeConfig(config);
+		config.put((byte)mConservatism);
+		config.put((byte)mMaxIterations);
+	}
+
+	@Override
+	protected int getConfigSize() {
+		return super.getConfigSize() + 2;
+	}
+}
\ No newline at end of file
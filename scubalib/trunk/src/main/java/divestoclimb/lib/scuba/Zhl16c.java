@@ -0,0 +1,224 @@
+package divestoclimb.lib.scuba;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An implementation of the Buhlmann ZHL-16C decompression model with gradient
+ * factors. The gradient factor moves linearly from GF low at the first stop
+ * to GF high at the surface.
+ */
+public class Zhl16c extends AbsDecoAlgorithm {
+
+	// ZHL-16C coefficients. The first compartment uses the 1b values.
+	static final double[] N2_HALFTIMES = {
+		5.0, 8.0, 12.5, 18.5, 27.0, 38.3, 54.3, 77.0,
+		109.0, 146.0, 187.0, 239.0, 305.0, 390.0, 498.0, 635.0
+	};
+	static final double[] N2_A = {
+		1.1696, 1.0, 0.8618, 0.7562, 0.62, 0.5043, 0.441, 0.4,
+		0.375, 0.35, 0.3295, 0.3065, 0.2835, 0.261, 0.248, 0.2327
+	};
+	static final double[] N2_B = {
+		0.5578, 0.6514, 0.7222, 0.7825, 0.8126, 0.8434, 0.8693, 0.891,
+		0.9092, 0.9222, 0.9319, 0.9403, 0.9477, 0.9544, 0.9602, 0.9653
+	};
+	static final double[] HE_HALFTIMES = {
+		1.88, 3.02, 4.72, 6.99, 10.21, 14.48, 20.53, 29.11,
+		41.20, 55.19, 70.69, 90.34, 115.29, 147.42, 188.24, 240.03
+	};
+	static final double[] HE_A = {
+		1.6189, 1.383, 1.1919, 1.0458, 0.922, 0.8205, 0.7305, 0.6502,
+		0.595, 0.5545, 0.5333, 0.5189, 0.5181, 0.5176, 0.5172, 0.5119
+	};
+	static final double[] HE_B = {
+		0.477, 0.5747, 0.6527, 0.7223, 0.7582, 0.7957, 0.8279, 0.8553,
+		0.8757, 0.8903, 0.8997, 0.9073, 0.9122, 0.9171, 0.9217, 0.9267
+	};
+
+	public static final float DEFAULT_GF_LOW = 0.3f;
+	public static final float DEFAULT_GF_HIGH = 0.75f;
+
+	// These are set by resetConfig, which the superclass constructor calls, so
+	// they must not have initializers.
+	private float mGfLow, mGfHigh;
+
+	// The depth of the first stop of the current dive, which anchors the low
+	// end of the gradient factor slope. -1 if no stop has been made yet.
+	private int mFirstStop = -1;
+
+	public Zhl16c(Units units) {
+		super(units, N2_HALFTIMES, HE_HALFTIMES);
+	}
+
+	public float getGfLow() { return mGfLow; }
+	public float getGfHigh() { return mGfHigh; }
+
+	/**
+	 * Set the gradient factors to use
+	 * @param low The gradient factor at the first stop, from 0 to 1
+	 * @param high The gradient factor on surfacing, from 0 to 1
+	 */
+	public void setGradientFactors(float low, float high) {
+		mGfLow = low;
+		mGfHigh = high;
+	}
+
+	/**
+	 * Get the gradient factor in effect at a given depth
+	 * @param depth The depth
+	 * @return The gradient factor, from 0 to 1
+	 */
+	protected double gradientFactor(int depth) {
+		final int firstStop = mFirstStop;
+		if(firstStop <= 0 || depth >= firstStop) {
+			return mGfLow;
+		}
+		return mGfHigh + (mGfLow - mGfHigh) * depth / firstStop;
+	}
+
+	@Override
+	protected double toleratedPressure(int c, double pN2, double pHe, int depth) {
+		final double p = pN2 + pHe;
+		if(p <= 0) {
+			return 0;
+		}
+		// With both gases loaded, a and b are the averages of the two weighted
+		// by loading
+		final double a = (N2_A[c] * pN2 + HE_A[c] * pHe) / p,
+				b = (N2_B[c] * pN2 + HE_B[c] * pHe) / p;
+		final double gf = gradientFactor(depth);
+		return (p - a * gf) / (gf / b + 1 - gf);
+	}
+
+	/**
+	 * While a compartment holds and breathes only one inert gas, its a and b
+	 * values don't change during the stop, so the loading it can tolerate is
+	 * fixed and the Haldane equation can be solved for the time directly.
+	 */
+	@Override
+	protected double stopClearTime(int c, double pN2, double pHe, double n2i, double hei, int next, double ambient) {
+		final double time = singleGasTime(c, pN2, pHe, n2i, hei, next, ambient, true);
+		return Double.isNaN(time)? super.stopClearTime(c, pN2, pHe, n2i, hei, next, ambient): time;
+	}
+
+	/**
+	 * The same goes for the time a compartment can on-gas before it needs a
+	 * stop.
+	 */
+	@Override
+	protected double noStopTime(int c, double pN2, double pHe, double n2i, double hei, int depth, double ambient) {
+		final double time = singleGasTime(c, pN2, pHe, n2i, hei, depth, ambient, false);
+		return Double.isNaN(time)? super.noStopTime(c, pN2, pHe, n2i, hei, depth, ambient): time;
+	}
+
+	/**
+	 * Solve for the time a compartment that holds and breathes only one inert
+	 * gas takes to cross the loading it can tolerate at an ambient pressure
+	 * @param clearing True to find when it drops to the tolerated loading,
+	 * false to find when it rises past it
+	 * @return The time in minutes, Double.POSITIVE_INFINITY if it never gets
+	 * there, or Double.NaN if the compartment has both gases
+	 */
+	private double singleGasTime(int c, double pN2, double pHe, double n2i, double hei, int depth, double ambient, boolean clearing) {
+		final double p, pi, k, a, b;
+		if(pHe == 0 && hei == 0) {
+			p = pN2;
+			pi = n2i;
+			k = mN2Rates[c];
+			a = N2_A[c];
+			b = N2_B[c];
+		} else if(pN2 == 0 && n2i == 0) {
+			p = pHe;
+			pi = hei;
+			k = mHeRates[c];
+			a = HE_A[c];
+			b = HE_B[c];
+		} else {
+			return Double.NaN;
+		}
+		final double gf = gradientFactor(depth);
+		final double limit = ambient * (gf / b + 1 - gf) + a * gf;
+		if(clearing? p <= limit: p > limit) {
+			return 0;
+		}
+		if(clearing? pi >= limit: pi <= limit) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return Math.log((p - pi) / (limit - pi)) / k;
+	}
+
+	@Override
+	protected void beginStop(int depth) {
+		if(mFirstStop < 0) {
+			mFirstStop = depth;
+		}
+	}
+
+	@Override
+	protected void beginDive() {
+		mFirstStop = -1;
+	}
+
+	@Override
+	protected int getFirstStop() {
+		return mFirstStop;
+	}
+
+	@Override
+	protected void setFirstStop(int depth) {
+		mFirstStop = depth;
+	}
+
+	@Override
+	protected int getAlgorithmId() {
+		return DecoState.ALGORITHM_ZHL16C;
+	}
+
+	@Override
+	protected int getExtraStateSize() {
+		return 4;
+	}
+
+	@Override
+	protected void writeExtraState(ByteBuffer state) {
+		state.putInt(mFirstStop);
+	}
+
+	@Override
+	protected void readExtraState(ByteBuffer state) {
+		mFirstStop = state.getInt();
+	}
+
+	@Override
+	protected void resetState() {
+		super.resetState();
+		mFirstStop = -1;
+	}
+
+	@Override
+	protected void resetConfig() {
+		super.resetConfig();
+		mGfLow = DEFAULT_GF_LOW;
+		mGfHigh = DEFAULT_GF_HIGH;
+	}
+
+	@Override
+	protected void readConfig(ByteBuffer config) {
+		super.readConfig(config);
+		// Gradient factors are stored as whole percentages
+		mGfLow = config.get() / 100f;
+		mGfHigh = config.get() / 100f;
+	}
+
+	@Override
+	protected void writeConfig(ByteBuffer config) {
+		super.writeConfig(config);
+		config.put((byte)Math.round(mGfLow * 100));
+		config.put((byte)Math.round(mGfHigh * 100));
+	}
+
+	@Override
+	protected int getConfigSize() {
+		return super.getConfigSize() + 2;
+	}
+}
\ No newline at end of file